@@ -0,0 +1,161 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tzi.context.client.IdIndex;
+
+/**
+ * Property id lookups from 1 to 16 threads: a map guarded by one monitor
+ * (how ContextManager looked up ids before) against the lock free IdIndex.
+ * A writer thread keeps updating ids meanwhile.
+ * <p>
+ * Arguments: [contexts] [sources per context] [properties per source] [ms per run]
+ */
+public class IdLookupBenchmark {
+
+	private static interface Lookup {
+		public Integer get(String context, String source, String property);
+		public void put(String context, String source, String property, int id);
+	}
+
+	// name maps behind the map lock
+	private static class LockedLookup implements Lookup {
+		private final Object lock = new Object();
+		private final Map<String, Map<String, Map<String, Integer>>> ids = new TreeMap<String, Map<String, Map<String, Integer>>>();
+
+		public Integer get(String context, String source, String property) {
+			synchronized (lock) {
+				Map<String, Map<String, Integer>> sm = ids.get(context);
+				if(sm==null)
+					return null;
+				Map<String, Integer> pm = sm.get(source);
+				return pm == null ? null : pm.get(property);
+			}
+		}
+
+		public void put(String context, String source, String property, int id) {
+			synchronized (lock) {
+				Map<String, Map<String, Integer>> sm = ids.get(context);
+				if(sm==null)
+					ids.put(context, sm = new TreeMap<String, Map<String, Integer>>());
+				Map<String, Integer> pm = sm.get(source);
+				if(pm==null)
+					sm.put(source, pm = new TreeMap<String, Integer>());
+				pm.put(property, id);
+			}
+		}
+	}
+
+	private static class IndexLookup implements Lookup {
+		private final IdIndex index = new IdIndex();
+
+		public Integer get(String context, String source, String property) {
+			return index.getPropertyId(context, source, property);
+		}
+
+		public void put(String context, String source, String property, int id) {
+			// writers are serialized by the caller as in ContextManager
+			synchronized (this) {
+				index.putProperty(context, 1, source, 1, property, id);
+			}
+		}
+	}
+
+	private static String [] names(String prefix, int n) {
+		String [] s = new String [n];
+		for(int i=0; i<n; i++)
+			s[i] = prefix + i;
+		return s;
+	}
+
+	private static long run(final Lookup lookup, int threads, final long duration, final String [] ctx, final String [] src, final String [] prp) throws InterruptedException {
+		for(int c=0; c<ctx.length; c++)
+			for(int s=0; s<src.length; s++)
+				for(int p=0; p<prp.length; p++)
+					lookup.put(ctx[c], src[s], prp[p], (c * src.length + s) * prp.length + p);
+
+		final AtomicLong total = new AtomicLong();
+		final long end = System.currentTimeMillis() + duration;
+
+		Thread writer = new Thread() {
+			public void run() {
+				int n = 0;
+				while(System.currentTimeMillis() < end) {
+					lookup.put(ctx[n % ctx.length], src[n % src.length], prp[n % prp.length], n);
+					n++;
+					try {
+						Thread.sleep(1);
+					} catch(InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		};
+
+		Thread [] readers = new Thread [threads];
+		for(int t=0; t<threads; t++) {
+			final int seed = t;
+			readers[t] = new Thread() {
+				public void run() {
+					long n = 0;
+					int i = seed;
+					while((n & 0xFFF) != 0 || System.currentTimeMillis() < end) {
+						i = i * 1103515245 + 12345;
+						int r = i >>> 1;
+						if(lookup.get(ctx[r % ctx.length], src[(r / 7) % src.length], prp[(r / 13) % prp.length]) != null)
+							n++;
+					}
+					total.addAndGet(n);
+				}
+			};
+		}
+
+		writer.start();
+		for(Thread t : readers)
+			t.start();
+		for(Thread t : readers)
+			t.join();
+		writer.join();
+
+		return total.get() * 1000 / duration;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int contexts = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int sources = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int properties = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		long duration = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+
+		String [] ctx = names("context", contexts);
+		String [] src = names("source", sources);
+		String [] prp = names("property", properties);
+
+		// warm up both variants
+		run(new LockedLookup(), 2, duration / 2, ctx, src, prp);
+		run(new IndexLookup(), 2, duration / 2, ctx, src, prp);
+
+		System.out.println("threads\tlocked/s\tindex/s\tspeedup");
+		for(int threads=1; threads<=16; threads*=2) {
+			long locked = run(new LockedLookup(), threads, duration, ctx, src, prp);
+			long index = run(new IndexLookup(), threads, duration, ctx, src, prp);
+			System.out.println(threads + "\t" + locked + "\t" + index + "\t" + String.format("%.2f", (double)index / Math.max(1, locked)));
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tzi.context.client.IntMap;
+
+/**
+ * The sub-id step of ContextManager.processContextInformation: the listener
+ * id of an event is mapped to its subscription key. Compares a synchronized
+ * TreeMap with boxed ids (how the keys were looked up before) against IntMap.
+ * A writer thread keeps subscribing and unsubscribing meanwhile.
+ * <p>
+ * Each variant runs paced at 100000 events per second, reporting the rate
+ * reached and the mean time per dispatch, and then unpaced.
+ * <p>
+ * Arguments: [sub-ids] [ms per run] [events per second]
+ */
+public class SubscriptionDispatchBenchmark {
+
+	private static interface Dispatch {
+		public Object get(String listenerId);
+		public void put(int subId, Object key);
+		public void remove(int subId);
+	}
+
+	private static class TreeDispatch implements Dispatch {
+		private final Map<Integer, Object> map = new TreeMap<Integer, Object>();
+
+		public Object get(String listenerId) {
+			try {
+				Integer subId = Integer.valueOf(listenerId);
+				synchronized (map) {
+					return map.get(subId);
+				}
+			} catch(NumberFormatException nfe) {
+				return null;
+			}
+		}
+
+		public void put(int subId, Object key) {
+			synchronized (map) {
+				map.put(subId, key);
+			}
+		}
+
+		public void remove(int subId) {
+			synchronized (map) {
+				map.remove(subId);
+			}
+		}
+	}
+
+	private static class IntDispatch implements Dispatch {
+		private final IntMap<Object> map = new IntMap<Object>();
+
+		public Object get(String listenerId) {
+			try {
+				return map.get(Integer.parseInt(listenerId));
+			} catch(NumberFormatException nfe) {
+				return null;
+			}
+		}
+
+		public void put(int subId, Object key) {
+			map.put(subId, key);
+		}
+
+		public void remove(int subId) {
+			map.remove(subId);
+		}
+	}
+
+	private static class Result {
+		private long events;
+		private long dispatchNanos;
+		private long duration;
+
+		public String toString() {
+			return String.format("%d/s\t%.0f ns", events * 1000 / duration, (double)dispatchNanos / Math.max(1, events));
+		}
+	}
+
+	/**
+	 * @param rate events per second, 0 for as many as possible
+	 */
+	private static Result run(final Dispatch dispatch, final int subIds, long duration, long rate) throws InterruptedException {
+		// listener ids arrive as strings in the message
+		String [] listenerIds = new String [subIds];
+		for(int i=0; i<subIds; i++) {
+			dispatch.put(i, "key" + (i % 16));
+			listenerIds[i] = Integer.toString(i);
+		}
+
+		final long end = System.currentTimeMillis() + duration;
+
+		Thread writer = new Thread() {
+			public void run() {
+				int n = 0;
+				while(System.currentTimeMillis() < end) {
+					// churn ids above the active ones
+					int subId = subIds + (n % 64);
+					if((n & 1) == 0)
+						dispatch.put(subId, "key" + (n % 16));
+					else
+						dispatch.remove(subId);
+					n++;
+					try {
+						Thread.sleep(1);
+					} catch(InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		};
+		writer.start();
+
+		Result r = new Result();
+		long start = System.nanoTime();
+		int i = 0;
+		long found = 0;
+		while(System.currentTimeMillis() < end) {
+			// dispatch in batches of 100 and catch up with the schedule
+			if(rate > 0) {
+				long due = start + (r.events + 100) * 1000000000L / rate;
+				while(System.nanoTime() < due)
+					Thread.yield();
+			}
+			long t0 = System.nanoTime();
+			for(int k=0; k<100; k++) {
+				i = i * 1103515245 + 12345;
+				if(dispatch.get(listenerIds[(i >>> 1) % subIds]) != null)
+					found++;
+			}
+			r.dispatchNanos += System.nanoTime() - t0;
+			r.events += 100;
+		}
+		r.duration = (System.nanoTime() - start) / 1000000L;
+		writer.join();
+		if(found != r.events)
+			System.err.println("missed " + (r.events - found) + " sub-ids");
+		return r;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int subIds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long duration = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+		long rate = args.length > 2 ? Long.parseLong(args[2]) : 100000;
+
+		// warm up both variants
+		run(new TreeDispatch(), subIds, duration / 2, 0);
+		run(new IntDispatch(), subIds, duration / 2, 0);
+
+		System.out.println("variant\trate\tevents\tper dispatch");
+		System.out.println("before\t" + rate + "\t" + run(new TreeDispatch(), subIds, duration, rate));
+		System.out.println("after\t" + rate + "\t" + run(new IntDispatch(), subIds, duration, rate));
+		System.out.println("before\tmax\t" + run(new TreeDispatch(), subIds, duration, 0));
+		System.out.println("after\tmax\t" + run(new IntDispatch(), subIds, duration, 0));
+	}
+}
@@ -0,0 +1,195 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tzi.context.common.Context;
+import org.tzi.context.common.ContextElement;
+import org.tzi.context.common.ContextListener;
+import org.tzi.context.common.ContextListenerInterface;
+
+/**
+ * Delivers to a slow listener from a single thread. At most one value update
+ * per context, source and property is pending; a newer update replaces it
+ * in place unless a removal of its property or source was queued after it.
+ * Source and property changes are queued as they come.
+ * Updates are delivered in the order their entries were created.
+ */
+public class ConflatingListener implements ContextListener {
+
+	private static class Pending {
+		private final Context ctx;
+		private final ContextElement ce;
+		// for values, context/source/property key
+		private final String key;
+
+		// for changes
+		private final String source;
+		private final String property;
+		private final boolean isSrc;
+		private final boolean added;
+
+		private Pending(Context ctx, ContextElement ce, String key) {
+			this(ctx, ce, key, null, null, false, false);
+		}
+
+		private Pending(Context ctx, ContextElement ce, String source, String property, boolean isSrc, boolean added) {
+			this(ctx, ce, null, source, property, isSrc, added);
+		}
+
+		private Pending(Context ctx, ContextElement ce, String key, String source, String property, boolean isSrc, boolean added) {
+			this.ctx = ctx;
+			this.ce = ce;
+			this.key = key;
+			this.source = source;
+			this.property = property;
+			this.isSrc = isSrc;
+			this.added = added;
+		}
+	}
+
+	private final ContextListener listener;
+
+	private final Map<Object, Pending> pending = new LinkedHashMap<Object, Pending>();
+	// property key -> entry of the pending value that newer values may replace
+	private final Map<String, Object> replaceable = new HashMap<String, Object>();
+	private boolean running = false;
+	private long conflated = 0;
+
+	public ConflatingListener(ContextListener listener) {
+		this.listener = listener;
+	}
+
+	public ContextListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return number of updates replaced by a newer one before delivery
+	 */
+	public synchronized long getConflatedCount() {
+		return conflated;
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public ContextListenerInterface getProperties() {
+		return listener.getProperties();
+	}
+
+	public void processContext(Context ctx, ContextElement ce) {
+		String key = ctx.getName() + '\0' + ce.getSourceIdentifier() + '\0' + ce.getPropertyIdentifier();
+		Object entry;
+		synchronized (this) {
+			entry = replaceable.get(key);
+			if(entry == null) {
+				entry = new Object();
+				replaceable.put(key, entry);
+			}
+		}
+		put(entry, new Pending(ctx, ce, key));
+	}
+
+	public void propertyAdded(Context ctx, String source, String property) {
+		put(new Object(), new Pending(ctx, null, source, property, false, true));
+	}
+
+	public void propertyRemoved(Context ctx, String source, String property) {
+		synchronized (this) {
+			// a pending value stays ahead of the removal
+			replaceable.remove(ctx.getName() + '\0' + source + '\0' + property);
+		}
+		put(new Object(), new Pending(ctx, null, source, property, false, false));
+	}
+
+	public void sourceAdded(Context ctx, String source, String property) {
+		put(new Object(), new Pending(ctx, null, source, property, true, true));
+	}
+
+	public void sourceRemoved(Context ctx, String source) {
+		synchronized (this) {
+			String prefix = ctx.getName() + '\0' + source + '\0';
+			for(Iterator<String> i = replaceable.keySet().iterator(); i.hasNext(); ) {
+				if(i.next().startsWith(prefix))
+					i.remove();
+			}
+		}
+		put(new Object(), new Pending(ctx, null, source, null, true, false));
+	}
+
+	private void put(Object key, Pending p) {
+		synchronized (this) {
+			if(pending.put(key, p) != null)
+				conflated++;
+			if(running)
+				return;
+			running = true;
+		}
+		Thread t = new Thread("ConflatingListener") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void drain() {
+		while(true) {
+			Pending p;
+			synchronized (this) {
+				Iterator<Map.Entry<Object, Pending>> i = pending.entrySet().iterator();
+				if(!i.hasNext()) {
+					running = false;
+					return;
+				}
+				Map.Entry<Object, Pending> e = i.next();
+				p = e.getValue();
+				if(p.key != null && replaceable.get(p.key) == e.getKey())
+					replaceable.remove(p.key);
+				i.remove();
+			}
+			try {
+				deliver(p);
+			} catch(RuntimeException re) {
+				re.printStackTrace();
+			}
+		}
+	}
+
+	private void deliver(Pending p) {
+		if(p.ce != null) {
+			listener.processContext(p.ctx, p.ce);
+		} else if(p.isSrc) {
+			if(p.added)
+				listener.sourceAdded(p.ctx, p.source, p.property);
+			else
+				listener.sourceRemoved(p.ctx, p.source);
+		} else {
+			if(p.added)
+				listener.propertyAdded(p.ctx, p.source, p.property);
+			else
+				listener.propertyRemoved(p.ctx, p.source, p.property);
+		}
+	}
+}
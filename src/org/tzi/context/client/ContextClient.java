@@ -93,6 +93,9 @@ public class ContextClient {
 	
 	private Charset asciiCharset = Charset.forName("ASCII");
 	
+	// only used from the communication thread
+	private MessageTokenizer txTokenizer = new MessageTokenizer();
+	
 	public int getNumTXFromServer() {
 		int num = 0;
 		synchronized(transferMap) {
@@ -178,21 +181,32 @@ public class ContextClient {
 	}
 
 	public boolean processTX(String txMessage) {
-		String [] words = Util.splitWS(txMessage);
+		MessageTokenizer words = txTokenizer.reset(txMessage);
 		TransferRepresentation tr;
 		
-		if(words.length<3) {
+		int numWords = words.countRemaining();
+		
+		if(numWords<3) {
 			if(debug)
 				System.err.println("Invalid TXMessage: " + txMessage);
 			return false;
 		}
 		
+		words.next();
+		boolean isPacket = words.tokenEqualsIgnoreCase(Protocol.TXPACKET);
+		boolean isCtx = !isPacket && words.tokenEqualsIgnoreCase(Protocol.TXCTX);
+		boolean isAck = words.tokenEqualsIgnoreCase(Protocol.TXACK);
+		boolean isCancel = words.tokenEqualsIgnoreCase(Protocol.TXCANCEL);
+		boolean isResend = words.tokenEqualsIgnoreCase(Protocol.TXRESEND);
+		
 		int tid;
 		int packet;
 		
 		try {
-			tid = Integer.parseInt(words[1]);
-			packet = Integer.parseInt(words[2]);
+			words.next();
+			tid = words.tokenInt();
+			words.next();
+			packet = words.tokenInt();
 			
 			if(packet<0)
 				throw new NumberFormatException();
@@ -211,22 +225,20 @@ public class ContextClient {
 		if(debug)
 			System.out.println("Processing transfer for ID " + tid + ", packet " + packet + ", exist ? " + (tr == null ? "no" : "yes") );
 
-		int dataIndex = 3;
-		boolean isPacket; 
-		
-		if((isPacket = words[0].equalsIgnoreCase(Protocol.TXPACKET)) || words[0].equalsIgnoreCase(Protocol.TXCTX)) {
+		if(isPacket || isCtx) {
 			
 			if(packet==0) {
 				int size;
 				
 				try {
-					if(words.length<5) {
+					if(numWords<5) {
 						if(debug)
 							System.err.println("Invalid initial TX: " + txMessage);
 						return isPacket;
 					}
 					
-					size = Integer.parseInt(words[3]);
+					words.next();
+					size = words.tokenInt();
 					
 					if(size < 1)
 						throw new NumberFormatException();
@@ -236,8 +248,6 @@ public class ContextClient {
 					return isPacket;
 				}
 				
-				dataIndex = 4;
-				
 				if(tr==null) {
 					tr = new TransferRepresentation();
 					synchronized(transferMap) {
@@ -264,7 +274,7 @@ public class ContextClient {
 				
 				tr.txFromServerNeededPacket = 0;
 			} else {
-				if(words.length < 4) {
+				if(numWords < 4) {
 					if(debug)
 						System.err.println("Invalid TX: " + txMessage);
 					return false;
@@ -281,11 +291,11 @@ public class ContextClient {
 				putCommand(Protocol.TXRESEND + " " + tid + " " + tr.txFromServerNeededPacket);
 			} else {
 				if(tr.txFromServer) {
-					try {
-						tr.txFromServerBuffer.write(words[dataIndex].getBytes(asciiCharset));
-					} catch (IOException e) {
-						e.printStackTrace();
-						return false;
+					// copy the data word straight into the buffer; non-ASCII maps to '?' like the charset would
+					words.next();
+					for(int i=words.tokenStart(); i<words.tokenEnd(); i++) {
+						char c = txMessage.charAt(i);
+						tr.txFromServerBuffer.write(c < 128 ? c : '?');
 					}
 				} else {
 					if(debug)
@@ -314,7 +324,7 @@ public class ContextClient {
 			return packet==0 ? isPacket : false;
 		}
 
-		if(words[0].equalsIgnoreCase(Protocol.TXACK)) {
+		if(isAck) {
 			if(tr.txToServer) {
 				tr.lastAck = packet;
 				packet++;
@@ -334,7 +344,7 @@ public class ContextClient {
 			return false;
 		}
 
-		if(words[0].equalsIgnoreCase(Protocol.TXCANCEL)) {
+		if(isCancel) {
 			if(tr.txToServer) {
 				tr.txToServer = false;
 				tr.txToServerData = null;
@@ -344,7 +354,7 @@ public class ContextClient {
 			}
 			return false;
 		}
-		if(words[0].equalsIgnoreCase(Protocol.TXRESEND)) {
+		if(isResend) {
 			if(tr.txToServer) {
 				int tranLen = tr.getPacketData(packet, tr.txBuffer, 0);
 				if(tranLen > 0) {
@@ -484,6 +494,12 @@ public class ContextClient {
 			}
 		}
 		
+		public void putMessages(List<String> msgs) {
+			synchronized(outgoing) {
+				outgoing.addAll(msgs);
+			}
+		}
+		
 		public CommunicationState getCommunicationState() {
 			return commState;
 		}
@@ -861,6 +877,13 @@ public class ContextClient {
 		}
 	}
 	
+	public void putCommands(List<String> messages) {
+		synchronized(commandQueue) {
+			commandQueue.addAll(messages);
+			commThread.putMessages(messages);
+		}
+	}
+	
 	public CommunicationState getCommunicationState() {
 		if(commThread==null)
 			return CommunicationState.Disconnected;
@@ -905,6 +928,14 @@ public class ContextClient {
 		return commThread.loginName;
 	}
 	
+	public String getServerAddress() {
+		return commThread.serverAddress;
+	}
+	
+	public int getServerPort() {
+		return commThread.serverPort;
+	}
+	
 	public void terminate() {
 		commThread.terminate = true;
 	}
@@ -15,18 +15,27 @@
 */
 package org.tzi.context.client;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tzi.context.abstractenv.ContextAbstraction;
 import org.tzi.context.abstractenv.PassiveEnvironment;
@@ -52,15 +61,70 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		public void onHistory(String prefix, String context, String source, List<ContextElement> history);
 	}
 	
-	private static enum ID_TYPE { IT_CTX, IT_SRC, IT_PRP, IT_SETPRPID, IT_SETPRP, IT_GETCTXID, IT_GETSRCID, IT_GETPRPID, IT_SUBSCRIPTION, IT_SHORTSUB, IT_GETCTXLIST, IT_GETSRCLIST, IT_GETPRPLIST, IT_GETPRPUPDATE, IT_GETPRPINFO, IT_HISTORY };
+	private static enum ID_TYPE { IT_CTX, IT_SRC, IT_PRP, IT_SETPRPID, IT_SETPRP, IT_GETCTXID, IT_GETSRCID, IT_GETPRPID, IT_SUBSCRIPTION, IT_UNSUBSCRIPTION, IT_SHORTSUB, IT_GETCTXLIST, IT_GETSRCLIST, IT_GETPRPLIST, IT_GETPRPUPDATE, IT_GETPRPINFO, IT_CHECKPRPID, IT_HISTORY };
 
 	private TreeSet<String> usedPrefixSet = new TreeSet<String>();
 	
 	private static final String caCtx = "ctx";
 	
+	private static final String prefixMark = String.valueOf(Protocol.PREFIX_CHAR);
+	
+	private final ThreadLocal<MessageTokenizer> replyTokenizer = new ThreadLocal<MessageTokenizer>() {
+		protected MessageTokenizer initialValue() {
+			return new MessageTokenizer();
+		}
+	};
+	
 	private Object mapUpdateDummy = new Object();
 	
-	private PassiveEnvironment penv = new PassiveEnvironment();
+	private volatile PassiveEnvironment penv = new PassiveEnvironment();
+	
+	// lock free lookups; updated together with penv
+	private IdIndex idIndex = new IdIndex();
+	
+	// contexts by name; they survive a change of the server's ids
+	private Map<String, Context> contextObjects = new TreeMap<String, Context>();
+	
+	// counts detected changes of the server's ids (e.g. restarts)
+	private volatile int serverEpoch = 0;
+	
+	// what a short format message refers to
+	private static class ShortProperty {
+		private final String context;
+		private final String source;
+		private final String property;
+		private final Context ctx;
+		
+		private ShortProperty(String context, String source, String property, Context ctx) {
+			this.context = context;
+			this.source = source;
+			this.property = property;
+			this.ctx = ctx;
+		}
+	}
+	
+	// property id -> short property; updated together with penv
+	private IntMap<ShortProperty> shortIndex = new IntMap<ShortProperty>();
+	
+	private static final int MAX_BUFFERED_PER_ID = 1000;
+	private static final int MAX_BUFFERED = 10000;
+	
+	// short format messages for ids being looked up, in arrival order
+	private TreeMap<Integer, List<String>> unknownShort = new TreeMap<Integer, List<String>>();
+	private int unknownShortBuffered = 0;
+	private volatile boolean hasUnknownShort = false;
+	// unknown ids found since the last GETIDINFO batch; guarded by unknownShort
+	private List<Integer> unknownShortRequests = new ArrayList<Integer>();
+	private boolean unknownShortRequestScheduled = false;
+	// collects the unknown ids of a burst of messages into one batch
+	private static final long UNKNOWN_SHORT_REQUEST_DELAY = 5;
+	
+	private IdMapStore idStore = null;
+	// ids loaded from the cache file; not used for sets before the server confirmed them
+	private Map<String, IdMapStore.Entry> tentativeIds = new ConcurrentHashMap<String, IdMapStore.Entry>();
+	// tentative ids being checked -> prefix of their GETIDINFO
+	private Map<String, String> checkingIds = new HashMap<String, String>();
+	private static final int MAX_ID_CHECKS = 32;
 	
 	private static class DataHolder {
 		private ID_TYPE type;
@@ -80,8 +144,20 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		
 		private int id;
 		
+		private String query;
+		
+		private int warmUp = 0;
+		
 		private boolean hasFailedBefore = false;
 		
+		private int epoch;
+		
+		private PropertyBatch batch = null;
+		private int batchIndex;
+		
+		private SubscriptionGroup group = null;
+		private ShortSubBatch shortSubBatch = null;
+		
 		private DataHolder(String prefix) {
 			this.prefix = prefix;
 		}
@@ -170,10 +246,28 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			return h;
 		}
 		
-		private static DataHolder forUnknownPropertyContext(String prefix, String message) {
+		private static DataHolder forUnsubscription(String prefix, Object key, int id) {
+			DataHolder h = new DataHolder(prefix);
+			h.type = ID_TYPE.IT_UNSUBSCRIPTION;
+			h.subscriptionKey = key;
+			h.id = id;
+			return h;
+		}
+		
+		private static DataHolder forUnknownPropertyContext(String prefix, int id) {
 			DataHolder h = new DataHolder(prefix);
 			h.type = ID_TYPE.IT_GETPRPINFO;
-			h.value = message;
+			h.id = id;
+			return h;
+		}
+		
+		private static DataHolder forIdCheck(String prefix, IdMapStore.Entry e) {
+			DataHolder h = new DataHolder(prefix);
+			h.type = ID_TYPE.IT_CHECKPRPID;
+			h.context = e.context;
+			h.source = e.source;
+			h.property = e.property;
+			h.id = e.propertyId;
 			return h;
 		}
 		
@@ -188,6 +282,34 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		
 	}
 
+	public static class PropertyValue {
+		public String context;
+		public String source;
+		public String property;
+		public String value;
+		public List<String> tags;
+		public long timestamp;
+		public boolean isPersistent;
+		
+		public PropertyValue(String context, String source, String property, String value, List<String> tags, long timestamp, boolean isPersistent) {
+			this.context = context;
+			this.source = source;
+			this.property = property;
+			this.value = value;
+			this.tags = tags;
+			this.timestamp = timestamp;
+			this.isPersistent = isPersistent;
+		}
+		
+		public PropertyValue(String context, String source, String property, String value, List<String> tags, long timestamp) {
+			this(context, source, property, value, tags, timestamp, false);
+		}
+		
+		public PropertyValue(String context, String source, String property, String value) {
+			this(context, source, property, value, null, -1, false);
+		}
+	}
+	
 	public static class SubscriptionProperty {
 		public String name;
 		public Set<String> tags = new TreeSet<String>();
@@ -298,10 +420,23 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		public Object key;
 		public Map<String, SubscriptionContext> contexts = new TreeMap<String, SubscriptionContext>();
 		
+		private int version = 0;
+		// subscribe command for encodedVersion
+		private String encoded = null;
+		private int encodedVersion = -1;
+		
 		public SubscriptionData(Object key) {
 			this.key = key;
 		}
 		
+		/**
+		 * Needs to be called after changing contexts, sources or properties
+		 * directly so the cached subscribe command is rebuilt.
+		 */
+		public synchronized void changed() {
+			version++;
+		}
+		
 		public SubscriptionData add(SubscriptionContext sctx) {
 			SubscriptionContext cold = contexts.get(sctx.name);
 			if(cold!=null) {
@@ -309,18 +444,21 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			} else {
 				contexts.put(sctx.name, sctx);
 			}
+			changed();
 			
 			return this;
 		}
 		
 		public SubscriptionData remove(SubscriptionContext sctx) {
 			contexts.remove(sctx.name);
+			changed();
 			
 			return this;
 		}
 		
 		public SubscriptionData remove(String ctxname) {
 			contexts.remove(ctxname);
+			changed();
 			
 			return this;
 		}
@@ -341,35 +479,189 @@ public class ContextManager implements ContextClientListener, ContextListener {
 	
 	private TreeMap<String, DataHolder> setHolderMap = new TreeMap<String, DataHolder>();
 	
-	private List<ContextListener> listeners = new CopyOnWriteArrayList<ContextListener>();
+	// query command -> prefix of the identical request that is still in flight
+	private TreeMap<String, String> pendingQueries = new TreeMap<String, String>();
+	
+	private static class Resolution {
+		private final String context;
+		private final String source;
+		private final String property;
+		private List<DataHolder> waiting = new LinkedList<DataHolder>();
+		private boolean creating = false;
+		
+		private Resolution(String context, String source, String property) {
+			this.context = context;
+			this.source = source;
+			this.property = property;
+		}
+	}
+	
+	// properties whose id is being looked up or created; sets on them wait here
+	private TreeMap<String, Resolution> resolving = new TreeMap<String, Resolution>();
+	
+	private ListenerRouter listeners = new ListenerRouter();
+	// listener -> its conflating wrapper
+	private Map<ContextListener, ConflatingListener> conflating = new ConcurrentHashMap<ContextListener, ConflatingListener>();
 	private List<Listener> mgrListeners = new CopyOnWriteArrayList<ContextManager.Listener>();
 	
-	private List<SubscriptionData> subscriptions_todo = new LinkedList<SubscriptionData>();
-	private List<SubscriptionData> subscriptions = new LinkedList<SubscriptionData>();
+	// not (yet) part of Protocol; not sent anymore in a session once the server refused it
+	private static final String UNSUBSCRIBE = "UNSUBSCRIBE";
+	private volatile boolean unsubscribeSupported = true;
+	
+	// one SUBSCRIBE for a key and the sub-ids the server returned for it
+	private static class SubscriptionGroup {
+		private final SubscriptionData data;
+		private List<Integer> subIds = null;
+		private boolean sent = false;
+		private boolean cancelled = false;
+		// sent in an earlier session; a late reply is ignored
+		private boolean dropped = false;
+		// still subscribed until this group is
+		private final List<SubscriptionGroup> replaces = new ArrayList<SubscriptionGroup>();
+		
+		private SubscriptionGroup(SubscriptionData data) {
+			this.data = data;
+		}
+	}
+	
+	// SHORTSUB commands sent together for the sub-ids of one SUBSCRIBE
+	private static class ShortSubBatch {
+		private final int size;
+		private int pending;
+		private int failed = 0;
+		
+		private ShortSubBatch(int size) {
+			this.size = size;
+			this.pending = size;
+		}
+	}
+	
+	// everything subscribed with one key; merged holds the union of all groups
+	private static class KeySubscriptions {
+		private final SubscriptionData merged;
+		private final List<SubscriptionGroup> groups = new ArrayList<SubscriptionGroup>();
+		// number of subscribe calls per property
+		private final Map<String, Integer> refs = new TreeMap<String, Integer>();
+		// restored from the subscription file; the first subscribe call takes the reference over
+		private final Set<String> provisional = new TreeSet<String>();
+		
+		// copy of merged for resubscribing; reused (with its encoded command) while unchanged
+		private SubscriptionData snapshot = null;
+		private int snapshotVersion;
+		private int mergedVersion;
+		
+		private KeySubscriptions(Object key) {
+			merged = new SubscriptionData(key);
+		}
+		
+		private SubscriptionData snapshot() {
+			if(snapshot==null || snapshot.version != snapshotVersion || merged.version != mergedVersion) {
+				snapshot = new SubscriptionData(merged.key);
+				copyLeaves(merged, merged, snapshot);
+				snapshotVersion = snapshot.version;
+				mergedVersion = merged.version;
+			}
+			return snapshot;
+		}
+		
+		private SubscriptionGroup groupOf(String ctx, String src, String prp) {
+			for(SubscriptionGroup g : groups) {
+				if(findLeaf(g.data, ctx, src, prp)!=null)
+					return g;
+			}
+			return null;
+		}
+	}
+	
+	// key -> subscriptions; the null key is allowed
+	private Map<Object, KeySubscriptions> subscriptions = new HashMap<Object, KeySubscriptions>();
+	
+	// a value update that waits for the end of its window
+	private static class HeldEvent {
+		private final String contextName;
+		private final Integer ctxId;
+		private final ContextElement ce;
+		private final String listenerId;
+		private final Object key;
+		
+		private HeldEvent(String contextName, Integer ctxId, ContextElement ce, String listenerId, Object key) {
+			this.contextName = contextName;
+			this.ctxId = ctxId;
+			this.ce = ce;
+			this.listenerId = listenerId;
+			this.key = key;
+		}
+	}
+	
+	// delivery state of one property under a policy
+	private static class PropertyDelivery {
+		private long lastDelivered = 0;
+		private long windowStart = 0;
+		private String lastValue = null;
+		private HeldEvent held = null;
+	}
+	
+	private static class KeyDelivery {
+		private final DeliveryPolicy policy;
+		private final ConcurrentHashMap<String, PropertyDelivery> properties = new ConcurrentHashMap<String, PropertyDelivery>();
+		
+		private KeyDelivery(DeliveryPolicy policy) {
+			this.policy = policy;
+		}
+	}
+	
+	// subscription key -> delivery policy
+	private ConcurrentHashMap<Object, KeyDelivery> deliveryPolicies = new ConcurrentHashMap<Object, KeyDelivery>();
+	private Timer timer = null;
+	
+	// subscriptions are saved here if set
+	private File subscriptionFile = null;
+	private boolean subscriptionSaveScheduled = false;
 	
-	private TreeMap<Integer, Object> subscriptionMap = new TreeMap<Integer, Object>();
+	// sub-id -> subscription key; read for every event without locking
+	private IntMap<Object> subscriptionMap = new IntMap<Object>();
+	
+	// inbound traffic per subscription key and per sub-id
+	private ConcurrentHashMap<Object, TrafficStats.Group> keyStats = new ConcurrentHashMap<Object, TrafficStats.Group>();
+	private IntMap<TrafficStats> subIdStats = new IntMap<TrafficStats>();
+	// unsubscribed sub-ids whose events may still arrive
+	private IntMap<Boolean> cancelledSubIds = new IntMap<Boolean>();
+	
+	private PropertyValueCache valueCache = new PropertyValueCache(0);
+	private volatile boolean valueCacheEnabled = false;
+	
+	private NamespaceCache namespace = new NamespaceCache();
+	
+	// encoded names for command building; shared since the subscribe strings are built statically
+	private static final NameCodec names = new NameCodec(4096);
+	private volatile boolean listingCacheEnabled = false;
+	
+	private Object warmUpLock = new Object();
+	private Set<String> warmUpContexts = null;
+	private int warmUpGeneration = 0;
+	private int warmUpPending = 0;
+	// a warm-up completed on the current connection
+	private boolean warmUpDone = false;
+	// login id the id maps were last warmed up for
+	private int warmUpLoginId = -1;
+	private int warmedUpId = -1;
 	
 	private int lastClientId = -1;
 	private ContextClient client = null;
 	
 	private static final String prefixStart = "cm2";
 	private static final int prefixLength = 4;
+	// answers generated locally; never equal to a prefix sent to the server
+	private static final String localPrefixStart = "cml";
+	private final AtomicLong localPrefixCount = new AtomicLong();
 	
 	private static final String alpha = "abcdefghijklmnopqrstzuvwxyz";
 	private static final String num = "0123456789";
 	
 	private static final String prefixChars = alpha + alpha.toUpperCase() + num;
 	
-	private static final String prefixFormat;
-	private static final Character [] prefixCharBuffer = new Character [prefixLength];
-	
-	static {
-		String tmp = prefixStart;
-		for(int i=0; i<prefixLength; i++)
-			tmp += "%c";
-		
-		prefixFormat = tmp;
-	}
+	// guarded by usedPrefixSet
+	private final char [] prefixCharBuffer = (prefixStart + new String(new char [prefixLength])).toCharArray();
 	
 	private Random rnd = new Random();
 	
@@ -377,9 +669,9 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		String prefix;
 		synchronized (usedPrefixSet) {
 			do {
-				for(int i=0; i<prefixLength; i++)
+				for(int i=prefixStart.length(); i<prefixCharBuffer.length; i++)
 					prefixCharBuffer[i] = prefixChars.charAt(rnd.nextInt(prefixChars.length()));
-				prefix = String.format(prefixFormat, (Object [])prefixCharBuffer);
+				prefix = new String(prefixCharBuffer);
 			} while(usedPrefixSet.contains(prefix));
 
 			usedPrefixSet.add(prefix);
@@ -393,6 +685,11 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		}
 	}
 	
+	// prefix for answers generated locally; no reply will use it
+	private String getLocalPrefix() {
+		return localPrefixStart + Long.toString(localPrefixCount.incrementAndGet(), Character.MAX_RADIX);
+	}
+	
 	private boolean isOurPrefix(String prefix) {
 		synchronized (usedPrefixSet) {
 			return usedPrefixSet.contains(prefix);
@@ -413,76 +710,272 @@ public class ContextManager implements ContextClientListener, ContextListener {
 	}
 	
 	public DataHolder setProperty(String context, String source, String property, String value, List<String> tags, long timestamp, boolean isPersistent) {
+		DataHolder dh = DataHolder.forSet(null, context, source, property, value, tags, timestamp, isPersistent);
+		sendSet(dh);
+		return dh;
+	}
+	
+	/**
+	 * Returns a handle for repeated sets on one property. The id is looked up
+	 * (or the property created) right away if it is not known yet.
+	 */
+	public PropertyHandle resolve(String context, String source, String property) {
+		if(getPropertyId(context, source, property)==null) {
+			boolean start;
+			synchronized (resolving) {
+				String key = storeKey(context, source, property);
+				start = !resolving.containsKey(key);
+				if(start)
+					resolving.put(key, new Resolution(context, source, property));
+			}
+			if(start)
+				requestIds(context, source, property);
+		}
+		return new PropertyHandle(this, context, source, property);
+	}
+	
+	int getIdGeneration() {
+		return idIndex.getGeneration();
+	}
+	
+	Integer lookupPropertyId(String context, String source, String property) {
+		return getPropertyId(context, source, property);
+	}
+	
+	/**
+	 * Set by id for a handle; idCommand is the already encoded part of the
+	 * command following the request prefix.
+	 */
+	void setProperty(PropertyHandle h, StringBuilder sb, String idCommand, String value, List<String> tags, long timestamp, boolean isPersistent) {
+		DataHolder dh = DataHolder.forSet(getPrefix(), h.getContext(), h.getSource(), h.getProperty(), value, tags, timestamp, isPersistent);
+		dh.type = ID_TYPE.IT_SETPRPID;
+		dh.epoch = serverEpoch;
+		
+		synchronized(setHolderMap){
+			setHolderMap.put(dh.prefix, dh);
+		}
+		
+		sb.setLength(0);
+		sb.append(Protocol.PREFIX_CHAR);
+		sb.append(dh.prefix);
+		sb.append(idCommand);
+		appendSetValue(sb, dh);
+		doCommand(sb.toString());
+	}
+	
+	/**
+	 * Sets a number of properties at once. Ids are looked up in one go and all
+	 * commands for properties with a known id are queued together.
+	 * The returned batch reports the outcome for each item.
+	 */
+	public PropertyBatch setProperties(Collection<PropertyValue> values) {
+		PropertyBatch batch = new PropertyBatch(new ArrayList<PropertyValue>(values));
+		int n = batch.size();
+		
+		DataHolder [] holders = new DataHolder [n];
+		for(int i=0; i<n; i++) {
+			PropertyValue pv = batch.getItem(i);
+			DataHolder dh = DataHolder.forSet(null, pv.context, pv.source, pv.property, pv.value, pv.tags, pv.timestamp, pv.isPersistent);
+			dh.batch = batch;
+			dh.batchIndex = i;
+			holders[i] = dh;
+		}
+		
+		Integer [] ids = new Integer [n];
+		for(int i=0; i<n; i++) {
+			ids[i] = getPropertyId(holders[i].context, holders[i].source, holders[i].property);
+		}
+		
+		List<String> commands = new ArrayList<String>(n);
 		StringBuilder sb = new StringBuilder();
 		
-		Integer prpId = getPropertyId(context, source, property);
+		for(int i=0; i<n; i++) {
+			DataHolder dh = holders[i];
+			if(ids[i]!=null) {
+				dh.prefix = getPrefix();
+				dh.type = ID_TYPE.IT_SETPRPID;
+				dh.epoch = serverEpoch;
+				sb.setLength(0);
+				appendSetCommand(sb, dh, ids[i]);
+				commands.add(sb.toString());
+			}
+		}
 		
-		String prefix = getPrefix();
+		synchronized (setHolderMap) {
+			for(int i=0; i<n; i++) {
+				if(ids[i]!=null)
+					setHolderMap.put(holders[i].prefix, holders[i]);
+			}
+		}
+		
+		if(!commands.isEmpty()) {
+			doCommands(commands);
+		}
+		
+		// properties without an id take the usual path
+		for(int i=0; i<n; i++) {
+			if(ids[i]==null) {
+				sendSet(holders[i]);
+			}
+		}
+		
+		return batch;
+	}
+	
+	/**
+	 * Sends a set by id if the id is known. Otherwise the first set on a property
+	 * goes out by name and triggers the id lookup, later sets wait for the id.
+	 */
+	private void sendSet(DataHolder dh) {
+		Integer prpId = getPropertyId(dh.context, dh.source, dh.property);
+		
+		if(prpId==null) {
+			String key = storeKey(dh.context, dh.source, dh.property);
+			synchronized (resolving) {
+				// the id may have arrived in the meantime
+				prpId = getPropertyId(dh.context, dh.source, dh.property);
+				if(prpId==null) {
+					Resolution res = resolving.get(key);
+					if(res!=null) {
+						res.waiting.add(dh);
+						return;
+					}
+					resolving.put(key, new Resolution(dh.context, dh.source, dh.property));
+				}
+			}
+		}
+		
+		dh.prefix = getPrefix();
+		dh.type = prpId != null ? ID_TYPE.IT_SETPRPID : ID_TYPE.IT_SETPRP;
+		dh.epoch = serverEpoch;
 		
-		DataHolder dh;
-
 		synchronized(setHolderMap){
-			setHolderMap.put(prefix, dh = DataHolder.forSet(prefix, context, source, property, value, tags, timestamp, isPersistent));
+			setHolderMap.put(dh.prefix, dh);
 		}
 		
+		StringBuilder sb = new StringBuilder();
+		appendSetCommand(sb, dh, prpId);
+		doCommand(sb.toString());
+		
+		if(prpId==null) {
+			requestIds(dh.context, dh.source, dh.property);
+		}
+	}
+	
+	/**
+	 * Ends the resolution for a property. Waiting sets are sent again, if the id
+	 * is still unknown they fail.
+	 */
+	private void propertyResolved(String context, String source, String property) {
+		Resolution res;
+		synchronized (resolving) {
+			res = resolving.remove(storeKey(context, source, property));
+		}
+		if(res==null)
+			return;
+		
+		boolean known = getPropertyId(context, source, property) != null;
+		for(DataHolder dh : res.waiting) {
+			if(known) {
+				sendSet(dh);
+			} else {
+				System.err.println(">>> hardfail at setting " + dh.context + ", " + dh.source + ", " + dh.property);
+				if(dh.batch!=null)
+					dh.batch.itemFinished(dh.batchIndex, false);
+			}
+		}
+	}
+	
+	/**
+	 * Creates context, source and property unless this is already under way.
+	 * Identical create commands that are still in flight are not repeated.
+	 */
+	private void createProperty(String context, String source, String property) {
+		synchronized (resolving) {
+			Resolution res = resolving.get(storeKey(context, source, property));
+			if(res==null) {
+				resolving.put(storeKey(context, source, property), res = new Resolution(context, source, property));
+			}
+			if(res.creating)
+				return;
+			res.creating = true;
+		}
+		
+		System.out.println(">>> creating " + context + ", " + source + ", " + property);
+		
+		sendQuery(DataHolder.forCtx(null, context, true), Protocol.CREATECTX + " " + names.encode(context));
+		sendQuery(DataHolder.forSrc(null, context, source, true), Protocol.CREATESRC + " @" + names.encode(context) + " " + names.encode(source));
+		sendQuery(DataHolder.forPrp(null, context, source, property, true), Protocol.CREATEPRP + " @" + names.encode(context) + " @" + names.encode(source) + " " + names.encode(property));
+	}
+	
+	private boolean isCreating(String context, String source, String property) {
+		synchronized (resolving) {
+			Resolution res = resolving.get(storeKey(context, source, property));
+			return res!=null && res.creating;
+		}
+	}
+	
+	private DataHolder retrySet(DataHolder dh, boolean hasFailedBefore) {
+		DataHolder dhnew = DataHolder.forSet(null, dh.context, dh.source, dh.property, dh.value, dh.tags, dh.timestamp, dh.isPersistent);
+		dhnew.batch = dh.batch;
+		dhnew.batchIndex = dh.batchIndex;
+		dhnew.hasFailedBefore = hasFailedBefore;
+		sendSet(dhnew);
+		return dhnew;
+	}
+	
+	private void appendSetCommand(StringBuilder sb, DataHolder dh, Integer prpId) {
 		sb.append(Protocol.PREFIX_CHAR);
-		sb.append(prefix);
+		sb.append(dh.prefix);
 		sb.append(' ');
 		
 		sb.append(Protocol.SETPRP);
 		
 		if(prpId!=null) {
 			sb.append(" ");
-			sb.append(prpId.toString());
-			dh.type = ID_TYPE.IT_SETPRPID;
+			sb.append(prpId.intValue());
 		} else {
 			
 			sb.append(" @");
-			sb.append(Util.urlencode(context));
+			sb.append(names.encode(dh.context));
 			sb.append(" @");
-			sb.append(Util.urlencode(source));
+			sb.append(names.encode(dh.source));
 			sb.append(" @");
-			sb.append(Util.urlencode(property));
+			sb.append(names.encode(dh.property));
 		}
 		sb.append(" = ");
-		sb.append(Util.urlencode(value));
+		appendSetValue(sb, dh);
+	}
+	
+	// value, timestamp, tags and persistence flag
+	private void appendSetValue(StringBuilder sb, DataHolder dh) {
+		sb.append(Util.urlencode(dh.value));
 		sb.append(" ");
-		sb.append(Long.toString(timestamp));
+		sb.append(dh.timestamp);
 		sb.append(" ");
-		sb.append(Integer.toString(tags==null?0:tags.size()));
-		if(tags!=null) {
-			for(String tag : tags) {
+		sb.append(dh.tags==null?0:dh.tags.size());
+		if(dh.tags!=null) {
+			for(String tag : dh.tags) {
 				sb.append(" ");
-				sb.append(Util.urlencode(tag));
+				sb.append(names.encode(tag));
 			}
 		}
-		if(isPersistent) {
+		if(dh.isPersistent) {
 			sb.append(" P");
 		}
-		String command = sb.toString();;
-		doCommand(command);
+	}
+	
+	private void requestIds(String context, String source, String property) {
+		System.out.println("Requesting ids for " + context + ", " + source + ", " + property);
 		
-		if(prpId==null) {
-			// request ids...
-			System.out.println("Requesting ids for " + context + ", " + source + ", " + property);
-			String cmdid;
-			
-			cmdid = getPrefix();
-			synchronized(setHolderMap){
-				setHolderMap.put(cmdid, DataHolder.forCtx(cmdid, context, false));
-				doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.GETCTXID + " " + Util.urlencode(context));
-
-				cmdid = getPrefix();
-				setHolderMap.put(cmdid, DataHolder.forSrc(cmdid, context, source, false));
-				doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.GETSRCID + " @" + Util.urlencode(context) + " " + Util.urlencode(source));
-
-				cmdid = getPrefix();
-				setHolderMap.put(cmdid, DataHolder.forPrp(cmdid, context, source, property, false));
-			}
-			doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.GETPRPID + " @" + Util.urlencode(context) + " @" + Util.urlencode(source) + " " + Util.urlencode(property));
+		// replies arrive in order, so a lookup that is already in flight serves us as well
+		if(idIndex.getContextId(context)==null) {
+			sendQuery(DataHolder.forCtx(null, context, false), Protocol.GETCTXID + " " + names.encode(context));
 		}
-		
-		return dh;
+		if(idIndex.getSourceId(context, source)==null) {
+			sendQuery(DataHolder.forSrc(null, context, source, false), Protocol.GETSRCID + " @" + names.encode(context) + " " + names.encode(source));
+		}
+		sendQuery(DataHolder.forPrp(null, context, source, property, false), Protocol.GETPRPID + " @" + names.encode(context) + " @" + names.encode(source) + " " + names.encode(property));
 	}
 	
 	public void subscribe(String context, String source, String property, String...tags) {
@@ -517,34 +1010,533 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		subscribe(sd);
 	}
 	
+	/**
+	 * Adds to the subscriptions of sd.key. Only what is not covered yet is sent
+	 * to the server. If the tags of an already subscribed property change, the
+	 * server subscription containing it is replaced.
+	 */
 	public void subscribe(SubscriptionData sd) {
 		synchronized(subscriptions) {
-			subscriptions_todo.add(sd);
-			processPendingSubscriptions();
+			KeySubscriptions ks = subscriptions.get(sd.key);
+			if(ks==null) {
+				subscriptions.put(sd.key, ks = new KeySubscriptions(sd.key));
+			}
+			
+			SubscriptionData delta = new SubscriptionData(sd.key);
+			List<SubscriptionGroup> replaced = new ArrayList<SubscriptionGroup>();
+			
+			for(SubscriptionContext sctx : sd.contexts.values()) {
+				for(SubscriptionSource ssrc : sctx.sources.values()) {
+					for(SubscriptionProperty sprp : ssrc.props.values()) {
+						String ref = storeKey(sctx.name, ssrc.name, sprp.name);
+						Integer count = ks.refs.get(ref);
+						if(!ks.provisional.remove(ref))
+							ks.refs.put(ref, count == null ? 1 : count + 1);
+						
+						SubscriptionProperty have = findLeaf(ks.merged, sctx.name, ssrc.name, sprp.name);
+						if(have==null) {
+							addLeaf(ks.merged, sctx.name, ssrc.name, sprp.name, sprp.tags);
+							addLeaf(delta, sctx.name, ssrc.name, sprp.name, sprp.tags);
+						} else if(!coversTags(have.tags, sprp.tags)) {
+							have.tags = mergeTags(have.tags, sprp.tags);
+							ks.merged.changed();
+							SubscriptionGroup g = ks.groupOf(sctx.name, ssrc.name, sprp.name);
+							if(g==null) {
+								addLeaf(delta, sctx.name, ssrc.name, sprp.name, have.tags);
+							} else if(!replaced.contains(g)) {
+								replaced.add(g);
+							}
+						}
+					}
+				}
+			}
+			
+			if(!replaced.isEmpty()) {
+				for(SubscriptionGroup g : replaced) {
+					copyLeaves(ks.merged, g.data, delta);
+				}
+				supersede(ks, replaced, delta);
+			} else if(!delta.contexts.isEmpty()) {
+				addGroup(ks, delta);
+			}
 		}
+		processPendingSubscriptions();
+		subscriptionsChanged();
 	}
 	
-	private void processPendingSubscriptions() {
-		if(client.getCommunicationState() == CommunicationState.Connected) {
-			synchronized (subscriptions) {
-				while(!subscriptions_todo.isEmpty()) {
-					System.out.println("Subscribing now...");
-					SubscriptionData sd = subscriptions_todo.remove(0);
-					String command = createSubscribeString(sd);
-					subscriptions.add(sd);
-					DataHolder h = DataHolder.forSubscription(getPrefix(), command, sd.key);
-					synchronized (setHolderMap) {
-						setHolderMap.put(h.prefix, h);
+	/**
+	 * Subscribes and sets the delivery policy for sd.key (which must not be null).
+	 */
+	public void subscribe(SubscriptionData sd, DeliveryPolicy policy) {
+		setDeliveryPolicy(sd.key, policy);
+		subscribe(sd);
+	}
+	
+	/**
+	 * Limits the delivery of value updates for a subscription key.
+	 * Subscriptions without a key can not have a policy.
+	 * @param policy null removes the policy
+	 */
+	public void setDeliveryPolicy(Object key, DeliveryPolicy policy) {
+		if(key==null)
+			throw new IllegalArgumentException("Delivery policies need a subscription key");
+		if(policy==null) {
+			deliveryPolicies.remove(key);
+		} else {
+			deliveryPolicies.put(key, new KeyDelivery(policy));
+		}
+	}
+	
+	public DeliveryPolicy getDeliveryPolicy(Object key) {
+		KeyDelivery kd = key == null ? null : deliveryPolicies.get(key);
+		return kd == null ? null : kd.policy;
+	}
+	
+	/**
+	 * Cancels all subscriptions made with this key.
+	 */
+	public void unsubscribe(Object key) {
+		if(key!=null) {
+			deliveryPolicies.remove(key);
+			keyStats.remove(key);
+		}
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		synchronized (subscriptions) {
+			KeySubscriptions ks = subscriptions.remove(key);
+			if(ks==null)
+				return;
+			for(SubscriptionGroup g : new ArrayList<SubscriptionGroup>(ks.groups)) {
+				cancelGroup(ks, g, holders);
+			}
+			for(SubscriptionContext sctx : ks.merged.contexts.values()) {
+				for(SubscriptionSource ssrc : sctx.sources.values()) {
+					for(SubscriptionProperty sprp : ssrc.props.values()) {
+						valueCache.dropSubscriptionCoverage(sctx.name, ssrc.name, sprp.name);
 					}
-					doCommand(Protocol.PREFIX_CHAR + h.prefix + " " + command);
 				}
 			}
-		} else {
-			synchronized (subscriptions) {
-				if(subscriptions_todo.size()>0)
-					System.out.println("Can't subscribe now...");
+		}
+		sendHolders(holders);
+		subscriptionsChanged();
+	}
+	
+	/**
+	 * Releases one subscription of a property made with this key. The property
+	 * is unsubscribed when the last subscription is released.
+	 */
+	public void unsubscribe(Object key, String context, String source, String property) {
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		synchronized (subscriptions) {
+			KeySubscriptions ks = subscriptions.get(key);
+			if(ks==null)
+				return;
+			String ref = storeKey(context, source, property);
+			Integer count = ks.refs.get(ref);
+			if(count==null)
+				return;
+			if(count > 1) {
+				ks.refs.put(ref, count - 1);
+				subscriptionsChanged();
+				return;
+			}
+			ks.refs.remove(ref);
+			ks.provisional.remove(ref);
+			removeLeaf(ks.merged, context, source, property);
+			// another key may still cover it, the value then just expires early
+			valueCache.dropSubscriptionCoverage(context, source, property);
+			
+			if(ks.merged.contexts.isEmpty()) {
+				subscriptions.remove(key);
+				for(SubscriptionGroup g : new ArrayList<SubscriptionGroup>(ks.groups)) {
+					cancelGroup(ks, g, holders);
+				}
+			} else {
+				// the rest of the group is subscribed again
+				SubscriptionGroup g = ks.groupOf(context, source, property);
+				if(g!=null) {
+					SubscriptionData rest = new SubscriptionData(key);
+					copyLeaves(ks.merged, g.data, rest);
+					if(rest.contexts.isEmpty()) {
+						cancelGroup(ks, g, holders);
+					} else {
+						List<SubscriptionGroup> old = new ArrayList<SubscriptionGroup>();
+						old.add(g);
+						supersede(ks, old, rest);
+					}
+				}
+			}
+		}
+		sendHolders(holders);
+		processPendingSubscriptions();
+		subscriptionsChanged();
+	}
+	
+	private TrafficStats.Group keyStats(Object key) {
+		TrafficStats.Group tg = keyStats.get(key);
+		if(tg==null) {
+			TrafficStats.Group ntg = new TrafficStats.Group();
+			tg = keyStats.putIfAbsent(key, ntg);
+			if(tg==null)
+				tg = ntg;
+		}
+		return tg;
+	}
+	
+	/**
+	 * Inbound events received for a subscription key. Kept until the key is
+	 * unsubscribed. Events of subscriptions without a key are not counted.
+	 * @return null if nothing was subscribed with this key
+	 */
+	public TrafficStats.Snapshot getTrafficStatistics(Object key) {
+		TrafficStats.Group tg = key == null ? null : keyStats.get(key);
+		return tg == null ? null : tg.snapshot();
+	}
+	
+	/**
+	 * @return snapshots for all subscription keys
+	 */
+	public Map<Object, TrafficStats.Snapshot> getTrafficStatistics() {
+		Map<Object, TrafficStats.Snapshot> m = new HashMap<Object, TrafficStats.Snapshot>();
+		for(Map.Entry<Object, TrafficStats.Group> e : keyStats.entrySet()) {
+			m.put(e.getKey(), e.getValue().snapshot());
+		}
+		return m;
+	}
+	
+	/**
+	 * Inbound events received for one server subscription id.
+	 * @return null if the id is not active
+	 */
+	public TrafficStats.Snapshot getSubscriptionIdStatistics(int subId) {
+		TrafficStats ts = subIdStats.get(subId);
+		return ts == null ? null : ts.snapshot();
+	}
+	
+	/**
+	 * Keeps the subscriptions in a file. Subscriptions stored there are restored
+	 * now and sent together once connected; later changes are written back
+	 * shortly after they happen. Only subscriptions with String or null keys
+	 * are stored.
+	 * @param file null stops saving
+	 * @return false if the file could not be read
+	 */
+	public boolean setSubscriptionFile(File file) {
+		synchronized (subscriptions) {
+			subscriptionFile = file;
+		}
+		if(file==null)
+			return true;
+		
+		boolean ok = true;
+		if(SubscriptionStore.exists(file)) {
+			try {
+				restoreSubscriptions(SubscriptionStore.load(file));
+			} catch(IOException ioe) {
+				System.err.println("Could not read subscriptions from " + file + ": " + ioe.getMessage());
+				ok = false;
+			}
+		}
+		subscriptionsChanged();
+		return ok;
+	}
+	
+	private void restoreSubscriptions(List<SubscriptionStore.Entry> entries) {
+		// properties the application subscribed already keep their references
+		List<SubscriptionStore.Entry> missing = new ArrayList<SubscriptionStore.Entry>();
+		synchronized (subscriptions) {
+			for(SubscriptionStore.Entry e : entries) {
+				KeySubscriptions ks = subscriptions.get(e.key);
+				if(ks==null || !ks.refs.containsKey(storeKey(e.context, e.source, e.property)))
+					missing.add(e);
+			}
+		}
+		
+		Map<String, SubscriptionData> byKey = new TreeMap<String, SubscriptionData>();
+		SubscriptionData nullKey = null;
+		for(SubscriptionStore.Entry e : missing) {
+			SubscriptionData sd;
+			if(e.key==null) {
+				if(nullKey==null)
+					nullKey = new SubscriptionData(null);
+				sd = nullKey;
+			} else {
+				sd = byKey.get(e.key);
+				if(sd==null)
+					byKey.put(e.key, sd = new SubscriptionData(e.key));
+			}
+			addLeaf(sd, e.context, e.source, e.property, e.tags);
+		}
+		List<SubscriptionData> restore = new ArrayList<SubscriptionData>(byKey.values());
+		if(nullKey!=null)
+			restore.add(nullKey);
+		
+		// each restored property holds one reference until the application subscribes it again
+		for(SubscriptionData sd : restore)
+			subscribe(sd);
+		synchronized (subscriptions) {
+			for(SubscriptionStore.Entry e : missing) {
+				KeySubscriptions ks = subscriptions.get(e.key);
+				if(ks!=null)
+					ks.provisional.add(storeKey(e.context, e.source, e.property));
+			}
+		}
+		System.out.println("Restored " + entries.size() + " subscriptions");
+	}
+	
+	// saves the subscriptions a moment later so bursts of changes are written once
+	private void subscriptionsChanged() {
+		synchronized (subscriptions) {
+			if(subscriptionFile==null || subscriptionSaveScheduled)
+				return;
+			subscriptionSaveScheduled = true;
+		}
+		getTimer().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				saveSubscriptions();
+			}
+		}, 500);
+	}
+	
+	/**
+	 * Writes the subscriptions to the subscription file now.
+	 */
+	public void saveSubscriptions() {
+		File file;
+		List<SubscriptionStore.Entry> entries = new ArrayList<SubscriptionStore.Entry>();
+		synchronized (subscriptions) {
+			subscriptionSaveScheduled = false;
+			file = subscriptionFile;
+			if(file==null)
+				return;
+			for(KeySubscriptions ks : subscriptions.values()) {
+				Object key = ks.merged.key;
+				if(key!=null && !(key instanceof String))
+					continue;
+				for(SubscriptionContext sctx : ks.merged.contexts.values()) {
+					for(SubscriptionSource ssrc : sctx.sources.values()) {
+						for(SubscriptionProperty sprp : ssrc.props.values()) {
+							entries.add(new SubscriptionStore.Entry((String)key, sctx.name, ssrc.name, sprp.name, sprp.tags));
+						}
+					}
+				}
+			}
+		}
+		try {
+			SubscriptionStore.save(file, entries);
+		} catch(IOException ioe) {
+			System.err.println("Could not save subscriptions to " + file + ": " + ioe.getMessage());
+		}
+	}
+	
+	// no tags (or all tags) means no tag filter
+	private static boolean isUnfiltered(Set<String> tags) {
+		return tags.isEmpty() || tags.contains(Context.ALL_TAGS);
+	}
+	
+	private static boolean coversTags(Set<String> have, Set<String> want) {
+		if(isUnfiltered(have))
+			return true;
+		return !isUnfiltered(want) && have.containsAll(want);
+	}
+	
+	private static Set<String> mergeTags(Set<String> have, Set<String> want) {
+		if(isUnfiltered(have))
+			return new TreeSet<String>(have);
+		if(isUnfiltered(want))
+			return new TreeSet<String>(want);
+		Set<String> tags = new TreeSet<String>(have);
+		tags.addAll(want);
+		return tags;
+	}
+	
+	private static SubscriptionProperty findLeaf(SubscriptionData sd, String ctx, String src, String prp) {
+		SubscriptionContext sctx = sd.contexts.get(ctx);
+		if(sctx==null)
+			return null;
+		SubscriptionSource ssrc = sctx.sources.get(src);
+		if(ssrc==null)
+			return null;
+		return ssrc.props.get(prp);
+	}
+	
+	// adds a copy, replacing the tags of an existing leaf
+	private static void addLeaf(SubscriptionData sd, String ctx, String src, String prp, Set<String> tags) {
+		SubscriptionContext sctx = sd.contexts.get(ctx);
+		if(sctx==null) {
+			sd.contexts.put(ctx, sctx = new SubscriptionContext(ctx));
+		}
+		SubscriptionSource ssrc = sctx.sources.get(src);
+		if(ssrc==null) {
+			sctx.sources.put(src, ssrc = new SubscriptionSource(src));
+		}
+		ssrc.props.put(prp, new SubscriptionProperty(prp, tags));
+		sd.changed();
+	}
+	
+	private static boolean removeLeaf(SubscriptionData sd, String ctx, String src, String prp) {
+		SubscriptionContext sctx = sd.contexts.get(ctx);
+		if(sctx==null)
+			return false;
+		SubscriptionSource ssrc = sctx.sources.get(src);
+		if(ssrc==null || ssrc.props.remove(prp)==null)
+			return false;
+		if(ssrc.props.isEmpty())
+			sctx.remove(src);
+		if(sctx.sources.isEmpty())
+			sd.remove(ctx);
+		sd.changed();
+		return true;
+	}
+	
+	// copies the leaves of 'which' to 'to' with the tags they have in 'from'
+	private static void copyLeaves(SubscriptionData from, SubscriptionData which, SubscriptionData to) {
+		for(SubscriptionContext sctx : which.contexts.values()) {
+			for(SubscriptionSource ssrc : sctx.sources.values()) {
+				for(SubscriptionProperty sprp : ssrc.props.values()) {
+					SubscriptionProperty cur = findLeaf(from, sctx.name, ssrc.name, sprp.name);
+					if(cur!=null)
+						addLeaf(to, sctx.name, ssrc.name, sprp.name, cur.tags);
+				}
+			}
+		}
+	}
+	
+	// a group that was not sent yet takes further additions
+	private SubscriptionGroup addGroup(KeySubscriptions ks, SubscriptionData data) {
+		for(SubscriptionGroup g : ks.groups) {
+			if(!g.sent) {
+				copyLeaves(data, data, g.data);
+				return g;
+			}
+		}
+		SubscriptionGroup g = new SubscriptionGroup(data);
+		ks.groups.add(g);
+		return g;
+	}
+	
+	/**
+	 * Replaces groups by a new one subscribing data. Groups already sent stay
+	 * subscribed until the reply for the new one arrives, so their properties
+	 * are not missed meanwhile.
+	 */
+	private void supersede(KeySubscriptions ks, List<SubscriptionGroup> old, SubscriptionData data) {
+		List<SubscriptionGroup> replaced = new ArrayList<SubscriptionGroup>();
+		for(SubscriptionGroup g : old) {
+			ks.groups.remove(g);
+			if(g.sent) {
+				replaced.add(g);
+			} else {
+				g.cancelled = true;
+				replaced.addAll(g.replaces);
+				g.replaces.clear();
+			}
+		}
+		addGroup(ks, data).replaces.addAll(replaced);
+	}
+	
+	/**
+	 * Removes a group. Its server subscriptions are cancelled now or, if the
+	 * reply is still outstanding, when the sub-ids arrive.
+	 */
+	private void cancelGroup(KeySubscriptions ks, SubscriptionGroup g, List<DataHolder> holders) {
+		ks.groups.remove(g);
+		releaseGroup(ks.merged.key, g, holders);
+	}
+	
+	// cancels a group that is no longer listed and the groups it replaces
+	private void releaseGroup(Object key, SubscriptionGroup g, List<DataHolder> holders) {
+		g.cancelled = true;
+		if(g.subIds!=null) {
+			for(Integer subId : g.subIds) {
+				unsubscribeId(key, subId, holders);
+			}
+			g.subIds = null;
+		}
+		for(SubscriptionGroup old : g.replaces) {
+			releaseGroup(key, old, holders);
+		}
+		g.replaces.clear();
+	}
+	
+	// the server forgot the group's subscriptions
+	private void dropGroup(Object key, SubscriptionGroup g) {
+		if(g.subIds!=null) {
+			for(Integer subId : g.subIds) {
+				unmapSubId(key, subId);
+			}
+		}
+		g.dropped = true;
+		for(SubscriptionGroup old : g.replaces) {
+			dropGroup(key, old);
+		}
+		g.replaces.clear();
+	}
+	
+	/**
+	 * Events of the id are ignored from now on. Until the server confirms the
+	 * UNSUBSCRIBE the id stays in cancelledSubIds.
+	 * <p>
+	 * If the server refused UNSUBSCRIBE, it is not sent again until the next
+	 * login. The server then keeps streaming every released subscription
+	 * for the rest of the session: the traffic still arrives and is only
+	 * dropped here.
+	 */
+	private void unsubscribeId(Object key, int subId, List<DataHolder> holders) {
+		unmapSubId(key, subId);
+		cancelledSubIds.put(subId, Boolean.TRUE);
+		if(!unsubscribeSupported)
+			return;
+		DataHolder dh = DataHolder.forUnsubscription(getPrefix(), key, subId);
+		dh.subscriptionString = UNSUBSCRIBE + " " + subId;
+		holders.add(dh);
+	}
+	
+	// the key's statistics keep the totals of the sub-id
+	private void unmapSubId(Object key, int subId) {
+		subscriptionMap.remove(subId);
+		TrafficStats ts = subIdStats.remove(subId);
+		TrafficStats.Group tg = (ts==null || key==null) ? null : keyStats.get(key);
+		if(tg!=null)
+			tg.retire(ts);
+	}
+	
+	// registers and sends holders that carry their command in subscriptionString
+	private void sendHolders(List<DataHolder> holders) {
+		if(holders.isEmpty())
+			return;
+		List<String> commands = new ArrayList<String>(holders.size());
+		synchronized (setHolderMap) {
+			for(DataHolder dh : holders) {
+				setHolderMap.put(dh.prefix, dh);
+				commands.add(Protocol.PREFIX_CHAR + dh.prefix + " " + dh.subscriptionString);
 			}
 		}
+		doCommands(commands);
+	}
+	
+	private void processPendingSubscriptions() {
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		synchronized (subscriptions) {
+			boolean connected = client.getCommunicationState() == CommunicationState.Connected;
+			for(KeySubscriptions ks : subscriptions.values()) {
+				for(SubscriptionGroup g : ks.groups) {
+					if(g.sent)
+						continue;
+					if(!connected) {
+						System.out.println("Can't subscribe now...");
+						return;
+					}
+					g.sent = true;
+					DataHolder h = DataHolder.forSubscription(getPrefix(), createSubscribeString(g.data), ks.merged.key);
+					h.group = g;
+					holders.add(h);
+				}
+			}
+		}
+		if(!holders.isEmpty())
+			System.out.println("Subscribing now...");
+		sendHolders(holders);
 	}
 	
 	/*
@@ -568,28 +1560,28 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			sb.append(Context.ALL_CONTEXTS);
 		} else {
 			sb.append('@');
-			sb.append(Util.urlencode(context));
+			sb.append(names.encode(context));
 		}
 		sb.append(" 1 ");
 		if(Context.ALL_SOURCES.equals(source)) {
 			sb.append(Context.ALL_SOURCES);
 		} else {
 			sb.append('@');
-			sb.append(Util.urlencode(source));
+			sb.append(names.encode(source));
 		}
 		sb.append(" 1 ");
 		if(Context.ALL_PROPERTIES.equals(property)) {
 			sb.append(Context.ALL_PROPERTIES);
 		} else {
 			sb.append('@');
-			sb.append(Util.urlencode(property));
+			sb.append(names.encode(property));
 		}
 		sb.append(' ');
 		if(tags!=null) {
 			sb.append(Integer.toString(tags.size()));
 			for(String tag : tags) {
 				sb.append(' ');
-				sb.append(Util.urlencode(tag));
+				sb.append(names.encode(tag));
 			}
 		} else {
 			sb.append("0");
@@ -598,7 +1590,25 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		return command;
 	}
 	
+	/**
+	 * The command is cached in sd until sd changes.
+	 * <p>
+	 * Names are URL-encoded after the '@' like in the other SUBSCRIBE
+	 * variants. Earlier versions sent them raw here, so for names with
+	 * reserved characters the command differs on the wire; a server that
+	 * relied on raw names must decode them.
+	 */
 	public static String createSubscribeString(SubscriptionData sd) {
+		synchronized (sd) {
+			if(sd.encoded == null || sd.encodedVersion != sd.version) {
+				sd.encoded = encodeSubscription(sd);
+				sd.encodedVersion = sd.version;
+			}
+			return sd.encoded;
+		}
+	}
+	
+	private static String encodeSubscription(SubscriptionData sd) {
 		StringBuilder sb = new StringBuilder();
 		
 		sb.append(Protocol.SUBSCRIBE);
@@ -619,7 +1629,7 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			}
 			else {
 				sb.append('@');
-				sb.append(sctx.name);
+				sb.append(names.encode(sctx.name));
 			}
 			
 			sb.append(' ');
@@ -639,7 +1649,7 @@ public class ContextManager implements ContextClientListener, ContextListener {
 				}
 				else {
 					sb.append('@');
-					sb.append(ssrc.name);
+					sb.append(names.encode(ssrc.name));
 				}
 				
 				sb.append(' ');
@@ -658,7 +1668,7 @@ public class ContextManager implements ContextClientListener, ContextListener {
 					}
 					else {
 						sb.append('@');
-						sb.append(sprp.name);
+						sb.append(names.encode(sprp.name));
 					}
 
 					sb.append(' ');
@@ -672,7 +1682,7 @@ public class ContextManager implements ContextClientListener, ContextListener {
 						} else {
 							sb.append(' ');
 						}
-						sb.append(tag);
+						sb.append(names.encode(tag));
 					}
 
 				}
@@ -692,27 +1702,27 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			sb.append(Context.ALL_CONTEXTS);
 		} else {
 			sb.append('@');
-			sb.append(Util.urlencode(context));
+			sb.append(names.encode(context));
 		}
 		sb.append(" 1 ");
 		if(Context.ALL_SOURCES.equals(source)) {
 			sb.append(Context.ALL_SOURCES);
 		} else {
 			sb.append('@');
-			sb.append(Util.urlencode(source));
+			sb.append(names.encode(source));
 		}
 		sb.append(' ');
 		sb.append(Integer.toString(properties.size()));
 		for(String prop : properties) {
 			sb.append(" @");
-			sb.append(Util.urlencode(prop));
+			sb.append(names.encode(prop));
 		}
 		sb.append(' ');
 		if(tags!=null) {
 			sb.append(Integer.toString(tags.size()));
 			for(String tag : tags) {
 				sb.append(' ');
-				sb.append(Util.urlencode(tag));
+				sb.append(names.encode(tag));
 			}
 		} else {
 			sb.append("0");
@@ -726,21 +1736,32 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		client.putCommand(command);
 	}
 	
+	protected void doCommands(List<String> commands) {
+		client.putCommands(commands);
+	}
+	
 	private void updateContextMap(String contextName, Integer contextId) {
 		synchronized(mapUpdateDummy) {
 			ContextAbstraction ca = penv.getContextByName(contextName);
 			if(ca!=null) {
 				if(ca.getId() != contextId) {
 					//System.out.println("...updating context id... " + ca.getId() + " -> " + contextId);
+					namespace.contextIdChanged(ca.getId(), contextId);
 					penv.changeContextId(ca.getId(), contextId);
 				}
 			} else {
 				//System.out.println("Creating context at update " + contextId);
 				ca = penv.injectContext(contextId, contextName);
-				Context ctx = new Context(contextName);
-				ctx.addContextListener(this);
+				Context ctx = contextObjects.get(contextName);
+				if(ctx==null) {
+					ctx = new Context(contextName);
+					ctx.addContextListener(this);
+					contextObjects.put(contextName, ctx);
+				}
 				ca.setData(caCtx, ctx);
+				namespace.contextKnown(contextName, contextId);
 			}
+			idIndex.putContext(contextName, contextId, ca.getData(caCtx));
 		}
 	}
 	
@@ -753,12 +1774,15 @@ public class ContextManager implements ContextClientListener, ContextListener {
 
 			if(sa!=null) {
 				if(sa.getId() != sourceId) {
+					namespace.sourceIdChanged(ca.getName(), sa.getId(), sourceId);
 					penv.changeSourceId(sa.getId(), sourceId);
 				}
 			} else {
 				//System.out.println("...inserting source id...");
 				penv.injectSource(ca, sourceId, sourceName);
+				namespace.sourceKnown(ca.getName(), sourceName, sourceId);
 			}
+			idIndex.putSource(ca.getName(), ca.getId(), sourceName, sourceId);
 		}
 	}
 	
@@ -771,43 +1795,243 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			if(pa!=null) {
 				if(pa.getId() != propertyId) {
 					//System.out.println("...updating property id...");
+					namespace.propertyIdChanged(sa.getContext().getName(), sa.getName(), pa.getId(), propertyId);
+					shortIndex.remove(pa.getId());
 					penv.changePropertyId(pa.getId(), propertyId);
 				}
 			} else {
 				//System.out.println("...inserting property id...");
 				penv.injectProperty(sa, propertyId, propertyName);
+				namespace.propertyKnown(sa.getContext().getName(), sa.getName(), propertyName, propertyId);
+			}
+			
+			ContextAbstraction ca = sa.getContext();
+			if(!tentativeIds.isEmpty())
+				tentativeIds.remove(storeKey(ca.getName(), sa.getName(), propertyName));
+			idIndex.putProperty(ca.getName(), ca.getId(), sa.getName(), sa.getId(), propertyName, propertyId);
+			shortIndex.put(propertyId, new ShortProperty(ca.getName(), sa.getName(), propertyName, (Context)ca.getData(caCtx)));
+			
+			if(idStore!=null) {
+				try {
+					idStore.put(new IdMapStore.Entry(ca.getName(), ca.getId(), sa.getName(), sa.getId(), propertyName, propertyId));
+				} catch(IOException ioe) {
+					idStoreFailed(ioe);
+				}
 			}
 		}
 	}
 	
 	private Integer getPropertyId(String ctxName, String srcName, String prpName) {
+		return idIndex.getPropertyId(ctxName, srcName, prpName);
+	}
+	
+	private static String storeKey(String ctxName, String srcName, String prpName) {
+		return ctxName + '\0' + srcName + '\0' + prpName;
+	}
+	
+	/**
+	 * Looks up the tentative ids with GETIDINFO, at most MAX_ID_CHECKS at a
+	 * time; each reply lets the next one go out. Sets keep using names (or ids
+	 * learned from the server) until a reply confirms that a cached id still
+	 * belongs to the same names.
+	 */
+	private void checkTentativeIds() {
+		if(tentativeIds.isEmpty() || client.getCommunicationState() != CommunicationState.Connected)
+			return;
+		
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		List<String> commands = new ArrayList<String>();
+		synchronized (checkingIds) {
+			for(Map.Entry<String, IdMapStore.Entry> te : tentativeIds.entrySet()) {
+				if(checkingIds.size() >= MAX_ID_CHECKS)
+					break;
+				if(checkingIds.containsKey(te.getKey()))
+					continue;
+				IdMapStore.Entry e = te.getValue();
+				DataHolder dh = DataHolder.forIdCheck(getPrefix(), e);
+				checkingIds.put(te.getKey(), dh.prefix);
+				holders.add(dh);
+				commands.add(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.GETIDINFO + " " + e.propertyId);
+			}
+		}
+		if(holders.isEmpty())
+			return;
+		synchronized (setHolderMap) {
+			for(DataHolder dh : holders) {
+				setHolderMap.put(dh.prefix, dh);
+			}
+		}
+		doCommands(commands);
+	}
+	
+	// checks in flight are never answered after a disconnect
+	private void abortIdChecks() {
+		synchronized (checkingIds) {
+			synchronized (setHolderMap) {
+				for(String prefix : checkingIds.values()) {
+					setHolderMap.remove(prefix);
+				}
+			}
+			checkingIds.clear();
+		}
+	}
+	
+	/**
+	 * Reply to the check of a cached id. The reply names the current owner of
+	 * the id in any case; the cached entry survives only if the names match.
+	 * @param info null if the server does not know the id
+	 */
+	private void tentativeIdChecked(DataHolder dh, IdMapStore.Entry info) {
+		String key = storeKey(dh.context, dh.source, dh.property);
+		synchronized (checkingIds) {
+			if(dh.prefix.equals(checkingIds.get(key)))
+				checkingIds.remove(key);
+		}
+		try {
+			checkedIdReply(key, dh, info);
+		} finally {
+			checkTentativeIds();
+		}
+	}
+	
+	private void checkedIdReply(String key, DataHolder dh, IdMapStore.Entry info) {
+		if(info!=null)
+			applyIdInfo(info);
+		
 		synchronized(mapUpdateDummy) {
-			ContextAbstraction ca = penv.getContextByName(ctxName);
-			if(ca==null)
-				return null;
-			SourceAbstraction sa = ca.getSourceByName(srcName);
-			if(sa==null)
-				return null;
-			PropertyAbstraction pa = sa.getPropertyByName(prpName);
-			if(pa==null)
-				return null;
-			return pa.getId();
+			IdMapStore.Entry e = tentativeIds.get(key);
+			// confirmed (applyIdInfo took it over) or replaced meanwhile
+			if(e==null || e.propertyId != dh.id)
+				return;
+			
+			System.out.println("Dropping cached id " + e.propertyId + " for " + e.context + ", " + e.source + ", " + e.property);
+			tentativeIds.remove(key);
+			if(idStore!=null) {
+				IdMapStore.Entry stored = idStore.get(e.context, e.source, e.property);
+				if(stored!=null && stored.propertyId == e.propertyId) {
+					try {
+						idStore.remove(e.context, e.source, e.property);
+					} catch(IOException ioe) {
+						idStoreFailed(ioe);
+					}
+				}
+			}
+		}
+	}
+	
+	// REPLY IDINFO P <id> <name> S <id> <name> C <id> <name>; the cursor is on the status word
+	private static IdMapStore.Entry parseIdInfo(MessageTokenizer words) {
+		if(words.countRemaining() != 10 || !words.skip(2) || !words.tokenEquals("P"))
+			return null;
+		try {
+			words.next();
+			int prpId = words.tokenInt();
+			words.next();
+			String prpName = words.token();
+			words.skip(2);
+			int srcId = words.tokenInt();
+			words.next();
+			String srcName = words.token();
+			words.skip(2);
+			int ctxId = words.tokenInt();
+			words.next();
+			String ctxName = words.token();
+			return new IdMapStore.Entry(ctxName, ctxId, srcName, srcId, prpName, prpId);
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+	}
+	
+	private void applyIdInfo(IdMapStore.Entry info) {
+		updateContextMap(info.context, info.contextId);
+		updateSourceMap(info.contextId, info.source, info.sourceId);
+		updatePropertyMap(info.contextId, info.sourceId, info.property, info.propertyId);
+	}
+	
+	private void idStoreFailed(IOException ioe) {
+		System.err.println("Id cache failed, disabling it: " + ioe.getMessage());
+		synchronized(mapUpdateDummy) {
+			if(idStore!=null) {
+				idStore.close();
+				idStore = null;
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the property ids learned from the server in the given file and loads
+	 * the ids stored for the current server. Loaded ids are checked with the
+	 * server once connected and only used after they are confirmed; ids that
+	 * now belong to other names are dropped.
+	 * The epoch can be used to tell different incarnations of a server apart.
+	 * A null file disables the cache.
+	 * @return false if the file could not be used
+	 */
+	public boolean setIdCacheFile(File file, String epoch) {
+		synchronized(mapUpdateDummy) {
+			if(idStore!=null) {
+				idStore.close();
+				idStore = null;
+			}
+			tentativeIds.clear();
+			
+			if(file==null)
+				return true;
+			
+			String key = client.getServerAddress() + ":" + client.getServerPort() + "/" + (epoch==null ? "" : epoch);
+			try {
+				idStore = new IdMapStore(file, key);
+			} catch(IOException ioe) {
+				System.err.println("Unable to open id cache " + file + ": " + ioe.getMessage());
+				return false;
+			}
+			
+			for(IdMapStore.Entry e : idStore.getEntries()) {
+				if(getPropertyId(e.context, e.source, e.property)==null) {
+					tentativeIds.put(storeKey(e.context, e.source, e.property), e);
+				}
+			}
+			System.out.println("Loaded " + tentativeIds.size() + " ids from " + file);
 		}
+		checkTentativeIds();
+		return true;
+	}
+	
+	private Integer getSourceId(String ctxName, String srcName) {
+		return idIndex.getSourceId(ctxName, srcName);
+	}
+	
+	public int getServerEpoch() {
+		return serverEpoch;
 	}
 	
+	/**
+	 * The server's ids may no longer be valid (e.g. after a restart). Known ids
+	 * become tentative like the ones from the id cache and are checked with the
+	 * server in the background; until an id is confirmed sets on it go by name.
+	 * Context objects are kept.
+	 */
 	private void resetIdAssociations() {
 		synchronized(mapUpdateDummy) {
+			serverEpoch++;
+			for(IdMapStore.Entry e : idIndex.getPropertyEntries()) {
+				tentativeIds.put(storeKey(e.context, e.source, e.property), e);
+			}
 			penv = new PassiveEnvironment();
-		}		
+			idIndex.clear();
+			shortIndex.clear();
+			// listings carry the old ids
+			namespace.clear();
+		}
 	}
 
 	public void processCommandResult(String command, String result) {
-		String [] words = Util.splitWS(result);
-		String [] _prefix = { null };
+		MessageTokenizer words = replyTokenizer.get().reset(result);
 		String prefix = null;
 
-		words = Util.splitPrefixFromMessage(words, _prefix);
-		prefix = _prefix[0];
+		if(words.next() && words.tokenStartsWith(prefixMark)) {
+			prefix = words.token(prefixMark.length());
+		}
 
 		if(prefix==null)
 			return;
@@ -822,19 +2046,33 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			dh = setHolderMap.remove(prefix);
 		}
 
-		freePrefix(prefix);
-
-		if(words.length < 1)
+		freePrefix(prefix);
+		
+		if(dh!=null && dh.query!=null) {
+			synchronized (pendingQueries) {
+				if(prefix.equals(pendingQueries.get(dh.query)))
+					pendingQueries.remove(dh.query);
+			}
+		}
+
+		// position on the first word after the prefix
+		if(!words.next())
 			return;
 
 
 		ID_TYPE idt = dh != null ? dh.type : null;
+		
+		// the reply format is known to ContextCommon; asked once per reply
+		boolean failed = Util.isFailReply(result);
+		Integer pid = Util.parseIntReply(result);
+		
+		if(dh != null && dh.batch != null && !failed) {
+			dh.batch.itemFinished(dh.batchIndex, true);
+		}
 
 		if(idt!=null) {
 			//System.out.println("Received a reply for a command of type: " + idt + ": " + result);
 
-			Integer pid = Util.parseIntReply(result);
-
 			String rctx = dh.context;
 			String rsrc = dh.source;
 			String rprp = dh.property;
@@ -843,12 +2081,10 @@ public class ContextManager implements ContextClientListener, ContextListener {
 			Integer srcId = null;
 
 			if(rctx!=null) {
-				ContextAbstraction ca = penv.getContextByName(rctx);
-				ctxId = ca == null ? null : ca.getId();
+				ctxId = idIndex.getContextId(rctx);
 
 				if(ctxId!=null && rsrc != null) {
-					SourceAbstraction sa = ca.getSourceByName(rsrc);
-					srcId = sa == null ? null : sa.getId();
+					srcId = idIndex.getSourceId(rctx, rsrc);
 				}
 			}
 
@@ -881,29 +2117,37 @@ public class ContextManager implements ContextClientListener, ContextListener {
 					} else {
 						System.err.println("Bad map... no source and/or property for " + prefix);
 					}
+					if(rprp != null && (idt == ID_TYPE.IT_PRP || !isCreating(rctx, rsrc, rprp)))
+						propertyResolved(rctx, rsrc, rprp);
 					break;
 				}
 			} else {
 				
 				switch(idt) {
+				case IT_GETPRPID:
+					// unknown to the server; sets wait for the creation
+					if(rprp != null && !isCreating(rctx, rsrc, rprp))
+						createProperty(rctx, rsrc, rprp);
+					break;
+				case IT_PRP:
+					System.err.println("Failed to create " + rctx + ", " + rsrc + ", " + rprp);
+					if(rprp != null)
+						propertyResolved(rctx, rsrc, rprp);
+					break;
 				case IT_SUBSCRIPTION:
-					if(Util.isFailReply(result)) {
+					if(failed) {
 						System.err.println("Failed to subscribe with " + dh.subscriptionString);
 					} else {
 						System.out.println("Received subscription id for " + dh.subscriptionKey + "");
+						List<Integer> subIds = new ArrayList<Integer>();
 						try {
-							pid = Integer.parseInt(words[1]);
+							words.next();
+							pid = words.tokenInt();
 							System.out.println("Got " + pid + " subscription ids...");
 							for(int i=0; i<pid; i++) {
 								try {
-									int subpid = Integer.parseInt(words[2+i]);
-									System.out.println("Processing sub-pid " + subpid + "...");
-									if(dh.subscriptionKey!=null) {
-										synchronized (subscriptionMap) {
-											subscriptionMap.put(subpid, dh.subscriptionKey);
-										}
-									}
-									setShortSub(subpid, dh.subscriptionKey, true);
+									words.next();
+									subIds.add(words.tokenInt());
 								} catch(NumberFormatException nfe) {
 									System.err.println("Error parsing sub-pid!");
 								}
@@ -911,99 +2155,102 @@ public class ContextManager implements ContextClientListener, ContextListener {
 						} catch(NumberFormatException nfe) {
 							System.err.println("Error parsing number of sub-pids!");
 						}
+						subscribed(dh, subIds);
 						break;
 					}
 					break;
+				case IT_UNSUBSCRIPTION:
+					if(failed) {
+						// its events stay ignored
+						if(unsubscribeSupported) {
+							unsubscribeSupported = false;
+							System.err.println("Server refused " + UNSUBSCRIBE + " " + dh.id + ", cancelled sub-ids are ignored from now on");
+						}
+					} else {
+						cancelledSubIds.remove(dh.id);
+					}
+					break;
 				case IT_SHORTSUB:
-					if(Util.isFailReply(result)) {
+					if(failed) {
 						System.err.println("Failed to set short context info for " + dh.id + ": " + dh.subscriptionKey);
-					} else {
-						System.out.println("Short context info for " + dh.id + ": " + dh.subscriptionKey + (dh.isPersistent ? " activated" : " deactivated"));
+					}
+					if(dh.shortSubBatch != null) {
+						ShortSubBatch batch = dh.shortSubBatch;
+						synchronized (batch) {
+							if(failed)
+								batch.failed++;
+							if(--batch.pending == 0) {
+								System.out.println("Short context info for " + (batch.size - batch.failed) + " of " + batch.size + " sub-ids of " + dh.subscriptionKey + (dh.isPersistent ? " activated" : " deactivated"));
+							}
+						}
 					}
 					break;
 				case IT_SETPRP:
 				case IT_SETPRPID:
-					if(Util.isFailReply(result)) {
+					if(failed) {
 						if(rctx!=null && rsrc != null && rprp != null) {
 							if(!dh.hasFailedBefore) {
 								if(idt == ID_TYPE.IT_SETPRP) {
 
 									System.out.println(">>> setprp failed. creating properties!");
 
-									String cmdid;
-									cmdid = getPrefix();
-									synchronized(setHolderMap) {
-										setHolderMap.put(cmdid, DataHolder.forCtx(cmdid, rctx, true));
-										System.out.println("Creating context with prefix " + cmdid);
-
-										doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.CREATECTX + " " + Util.urlencode(rctx));
-
-										cmdid = getPrefix();
-										setHolderMap.put(cmdid, DataHolder.forSrc(cmdid, rctx, rsrc, true));
-
-										System.out.println("Creating source with prefix " + cmdid);
-
-										doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.CREATESRC + " @" + Util.urlencode(rctx) + " " + Util.urlencode(rsrc));
-
-										cmdid = getPrefix();
-										setHolderMap.put(cmdid, DataHolder.forPrp(cmdid, rctx, rsrc, rprp, true));
-									}
-
-									System.out.println("Creating property with prefix " + cmdid);
-
-									doCommand(Protocol.PREFIX_CHAR + cmdid + " " + Protocol.CREATEPRP + " @" + Util.urlencode(rctx) + " @" + Util.urlencode(rsrc) + " " + Util.urlencode(rprp));
-									DataHolder dhnew = setProperty(dh.context, dh.source, dh.property, dh.value, dh.tags, dh.timestamp, dh.isPersistent);
-									dhnew.hasFailedBefore = true;
+									createProperty(rctx, rsrc, rprp);
+									// waits for the creation to finish
+									retrySet(dh, true);
 								} else {
-									System.out.println("Resetting id associations...");
-									resetIdAssociations();
+									// only the first failure for the current ids starts over
+									if(dh.epoch == serverEpoch) {
+										System.out.println("Server ids changed, revalidating...");
+										resetIdAssociations();
+										startWarmUp();
+										checkTentativeIds();
+									}
 
 									// not setting fail flag here, because it is more likely that the server was just
 									// restarted and the ids are wrong...
-									setProperty(dh.context, dh.source, dh.property, dh.value, dh.tags, dh.timestamp, dh.isPersistent);
+									retrySet(dh, false);
 								}
 							} else {
 								System.err.println(">>> hardfail at setting " + dh.context + ", " + dh.source + ", " + dh.property);
+								if(dh.batch!=null)
+									dh.batch.itemFinished(dh.batchIndex, false);
 							}
 						} else {
 							System.err.println("Failed but don't know what to do...");
+							if(dh.batch!=null)
+								dh.batch.itemFinished(dh.batchIndex, false);
 						}
 					}
 					break;
 				case IT_GETPRPINFO:
-					// REPLY IDINFO P .....
-					if(words.length == 11 && "P".equals(words[2])) {
-						String prpIdS = words[3];
-						String prpName = words[4];
-						String srcIdS = words[6];
-						String srcName = words[7];
-						String ctxIdS = words[9];
-						String ctxName = words[10];
-						
-						try  {
-							Integer prpId = Integer.parseInt(prpIdS);
-							srcId = Integer.parseInt(srcIdS);
-							ctxId = Integer.parseInt(ctxIdS);
-							
-							updateContextMap(ctxName, ctxId);
-							updateSourceMap(ctxId, srcName, srcId);
-							updatePropertyMap(ctxId, srcId, prpName, prpId);
-							
-							//System.out.println("Re-Processing context...");
-							processContextInformation(dh.value);
-						} catch(NumberFormatException nfe) {
-							
-						}
+					IdMapStore.Entry info = parseIdInfo(words);
+					if(info!=null) {
+						applyIdInfo(info);
+						//System.out.println("Re-Processing context...");
+						flushUnknownShort(dh.id, true);
 					} else {
-						System.err.println("Lost context to unknown property... " + words.length + " " + words[1]);
+						System.err.println("Lost context to unknown property... " + result);
+						flushUnknownShort(dh.id, false);
 					}
 					break;
+				case IT_CHECKPRPID:
+					tentativeIdChecked(dh, failed ? null : parseIdInfo(words));
+					break;
 				case IT_GETCTXLIST:
 					Map<Integer, String> ctxmap = Protocol.parseCTXList(result);
+					if(ctxmap==null) {
+						System.err.println("No map from " + result);
+						break;
+					}
 					for(Map.Entry<Integer, String> ctxentry : ctxmap.entrySet()) {
 						updateContextMap(ctxentry.getValue(), ctxentry.getKey());
 					}
-					invokeContextListMessage(prefix, ctxmap);
+					namespace.putContextList(ctxmap);
+					if(dh.warmUp != 0) {
+						warmUpSources(dh.warmUp, ctxmap.values());
+					} else {
+						invokeContextListMessage(prefix, ctxmap);
+					}
 					break;
 				case IT_GETSRCLIST:
 					Map<Integer, Map<Integer, String>> srcmap = Protocol.parseSRCList(result);
@@ -1015,12 +2262,17 @@ public class ContextManager implements ContextClientListener, ContextListener {
 						Integer srcctx = e.getKey();
 						src = e.getValue();
 						for(Map.Entry<Integer, String> srcentry : e.getValue().entrySet()) {
-							updateSourceMap(srcctx, srcentry.getValue(), srcentry.getKey());
+							updateSourceMap(srcctx, stripListMark(srcentry.getValue()), srcentry.getKey());
 						}
 						break;
 					}
 					if(src!=null) {
-						invokeSourceListMessage(prefix, dh.context, src);
+						namespace.putSourceList(dh.context, src);
+						if(dh.warmUp != 0) {
+							warmUpProperties(dh.warmUp, dh.context, src.values());
+						} else {
+							invokeSourceListMessage(prefix, dh.context, src);
+						}
 					}
 					break;
 				case IT_GETPRPLIST:
@@ -1047,10 +2299,13 @@ public class ContextManager implements ContextClientListener, ContextListener {
 						
 						if(src!=null) {
 							for(Map.Entry<Integer, String> prpentry : src.entrySet()) {
-								updatePropertyMap(prpctx, prpsrc, prpentry.getValue(), prpentry.getKey());
+								updatePropertyMap(prpctx, prpsrc, stripListMark(prpentry.getValue()), prpentry.getKey());
 							}
 							
-							invokePropertyListMessage(prefix, dh.context, dh.source, src);
+							namespace.putPropertyList(dh.context, dh.source, src);
+							if(dh.warmUp == 0) {
+								invokePropertyListMessage(prefix, dh.context, dh.source, src);
+							}
 						}
 					}
 					
@@ -1058,6 +2313,9 @@ public class ContextManager implements ContextClientListener, ContextListener {
 				case IT_GETPRPUPDATE:
 					ContextElement ce = Protocol.parseProperty(dh.source, dh.property, result);
 					if(ce!=null) {
+						if(valueCacheEnabled) {
+							valueCache.update(dh.context, ce, false);
+						}
 						invokePropertyUpdateMessage(prefix, dh.context, dh.source, ce);
 					}
 					break;
@@ -1070,27 +2328,373 @@ public class ContextManager implements ContextClientListener, ContextListener {
 				}
 			}
 
+			if(dh.warmUp != 0) {
+				warmUpReplied(dh.warmUp);
+			}
+
 		} else {
 			System.err.println("No known command with prefix " + prefix);
 		}
 	}
+	
+	// list replies may mark names with a trailing '*'
+	private static String stripListMark(String name) {
+		if(name.endsWith("*"))
+			return name.substring(0, name.length()-1);
+		
+		return name;
+	}
+	
+	/**
+	 * Sets the contexts whose context, source and property ids are fetched
+	 * right after login, so the first setProperty calls can already use ids.
+	 * {@link Context#ALL_CONTEXTS} fetches everything, null disables the warm-up.
+	 */
+	public void setWarmUpContexts(Collection<String> contexts) {
+		synchronized (warmUpLock) {
+			warmUpContexts = contexts == null ? null : new TreeSet<String>(contexts);
+		}
+	}
+	
+	/**
+	 * @return true once connected and the warm-up for this connection is done
+	 */
+	public boolean isWarmUpComplete() {
+		synchronized (warmUpLock) {
+			return warmUpDone;
+		}
+	}
+	
+	/**
+	 * Waits for a connection and its warm-up.
+	 * @return true if the warm-up completed before the timeout (in ms) ran out
+	 */
+	public boolean waitForWarmUp(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long now;
+		synchronized (warmUpLock) {
+			while(!warmUpDone && (now = System.currentTimeMillis()) < end) {
+				warmUpLock.wait(end - now);
+			}
+			return warmUpDone;
+		}
+	}
+	
+	// called with warmUpLock held
+	private void warmUpFinished() {
+		warmUpPending = 0;
+		warmUpDone = true;
+		warmedUpId = warmUpLoginId;
+		warmUpLock.notifyAll();
+	}
+	
+	private void startWarmUp() {
+		DataHolder dh;
+		synchronized (warmUpLock) {
+			warmUpGeneration++;
+			warmUpDone = false;
+			warmedUpId = -1;
+			warmUpLoginId = client.getID();
+			if(warmUpContexts == null || warmUpContexts.isEmpty()) {
+				warmUpFinished();
+				return;
+			}
+			warmUpPending = 1;
+			dh = DataHolder.forCtxList(getPrefix());
+			dh.warmUp = warmUpGeneration;
+		}
+		System.out.println("Warming up id maps...");
+		synchronized (setHolderMap) {
+			setHolderMap.put(dh.prefix, dh);
+		}
+		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTCTX);
+	}
+	
+	private void warmUpSources(int generation, Collection<String> contexts) {
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		List<String> commands = new ArrayList<String>();
+		synchronized (warmUpLock) {
+			if(generation != warmUpGeneration)
+				return;
+			boolean all = warmUpContexts != null && warmUpContexts.contains(Context.ALL_CONTEXTS);
+			for(String ctx : contexts) {
+				if(!all && !(warmUpContexts != null && warmUpContexts.contains(ctx)))
+					continue;
+				DataHolder dh = DataHolder.forSrcList(getPrefix(), ctx);
+				dh.warmUp = generation;
+				holders.add(dh);
+				commands.add(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTSRC + " @" + names.encode(ctx));
+			}
+			warmUpPending += holders.size();
+		}
+		sendWarmUp(holders, commands);
+	}
+	
+	private void warmUpProperties(int generation, String context, Collection<String> sources) {
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		List<String> commands = new ArrayList<String>();
+		synchronized (warmUpLock) {
+			if(generation != warmUpGeneration)
+				return;
+			for(String src : sources) {
+				src = stripListMark(src);
+				DataHolder dh = DataHolder.forPrpList(getPrefix(), context, src);
+				dh.warmUp = generation;
+				holders.add(dh);
+				commands.add(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTPRP + " @" + names.encode(context) + " 1 @" + names.encode(src));
+			}
+			warmUpPending += holders.size();
+		}
+		sendWarmUp(holders, commands);
+	}
+	
+	private void sendWarmUp(List<DataHolder> holders, List<String> commands) {
+		if(holders.isEmpty())
+			return;
+		synchronized (setHolderMap) {
+			for(DataHolder dh : holders) {
+				setHolderMap.put(dh.prefix, dh);
+			}
+		}
+		doCommands(commands);
+	}
+	
+	private void warmUpReplied(int generation) {
+		synchronized (warmUpLock) {
+			if(generation != warmUpGeneration || warmUpPending == 0)
+				return;
+			warmUpPending--;
+			if(warmUpPending == 0) {
+				System.out.println("Id maps are warmed up");
+				warmUpFinished();
+			}
+		}
+	}
 
 	public void processCommunicationState(CommunicationState state) {
+		if(state != CommunicationState.Connected) {
+			// replies for in-flight queries will not arrive anymore
+			synchronized (pendingQueries) {
+				pendingQueries.clear();
+			}
+			// ...buffered short messages will not be resolved...
+			synchronized (unknownShort) {
+				unknownShort.clear();
+				unknownShortBuffered = 0;
+				hasUnknownShort = false;
+				unknownShortRequests.clear();
+			}
+			// ...nor id checks...
+			abortIdChecks();
+			// ...and subscriptions no longer keep cached values current
+			valueCache.dropSubscriptionCoverage();
+			// namespace changes are missed while not connected
+			namespace.clear();
+			// an interrupted warm-up is restarted on the next connect
+			synchronized (warmUpLock) {
+				warmUpGeneration++;
+				warmUpPending = 0;
+				warmUpDone = false;
+			}
+		}
+		
 		if(state == CommunicationState.Connected) {
 			int idNow = client.getID();
 
 			if(idNow != lastClientId) {
+				// a new login id means the server did not know us anymore
+				if(lastClientId != -1) {
+					System.out.println("New login id, revalidating server ids...");
+					resetIdAssociations();
+				}
+				// the server forgot our subscriptions; send one merged subscription per key,
+				// later changes get groups of their own
 				synchronized (subscriptions) {
-					subscriptions_todo.addAll(subscriptions);
-					subscriptions.clear();
+					for(KeySubscriptions ks : subscriptions.values()) {
+						for(SubscriptionGroup g : ks.groups) {
+							dropGroup(ks.merged.key, g);
+						}
+						ks.groups.clear();
+						SubscriptionData all = ks.snapshot();
+						if(!all.contexts.isEmpty())
+							ks.groups.add(new SubscriptionGroup(all));
+					}
 				}
+				// sub-ids of the old session mean nothing now; the server may be a new one
+				cancelledSubIds.clear();
+				unsubscribeSupported = true;
 				lastClientId = idNow;
 				processPendingSubscriptions();
+				startWarmUp();
+			} else {
+				// same login; the maps are still valid if they were warmed up before
+				boolean restart;
+				synchronized (warmUpLock) {
+					restart = warmedUpId != idNow;
+					if(!restart) {
+						warmUpDone = true;
+						warmUpLock.notifyAll();
+					}
+				}
+				if(restart)
+					startWarmUp();
+			}
+			restartResolutions();
+			checkTentativeIds();
+		}
+	}
+	
+	/**
+	 * Resolutions interrupted by a disconnect start over once connected again.
+	 * Their sets keep waiting; the first one goes out and restarts the lookup.
+	 */
+	private void restartResolutions() {
+		List<Resolution> interrupted;
+		synchronized (resolving) {
+			interrupted = new ArrayList<Resolution>(resolving.values());
+			resolving.clear();
+		}
+		for(Resolution res : interrupted) {
+			if(!res.waiting.isEmpty()) {
+				for(DataHolder dh : res.waiting) {
+					sendSet(dh);
+				}
+				continue;
 			}
+			synchronized (resolving) {
+				String key = storeKey(res.context, res.source, res.property);
+				if(resolving.containsKey(key))
+					continue;
+				resolving.put(key, new Resolution(res.context, res.source, res.property));
+			}
+			requestIds(res.context, res.source, res.property);
 		}
 	}
 
+	private void subscribed(DataHolder dh, List<Integer> subIds) {
+		List<DataHolder> holders = new ArrayList<DataHolder>();
+		boolean active;
+		synchronized (subscriptions) {
+			if(dh.group!=null && dh.group.dropped)
+				return;
+			active = dh.group==null || !dh.group.cancelled;
+			if(active) {
+				if(dh.group!=null) {
+					dh.group.subIds = subIds;
+					// the replaced groups are not needed anymore
+					for(SubscriptionGroup old : dh.group.replaces) {
+						releaseGroup(dh.subscriptionKey, old, holders);
+					}
+					dh.group.replaces.clear();
+				}
+				for(Integer subId : subIds) {
+					System.out.println("Processing sub-pid " + subId + "...");
+					if(dh.subscriptionKey!=null) {
+						subscriptionMap.put(subId, dh.subscriptionKey);
+						TrafficStats ts = new TrafficStats();
+						keyStats(dh.subscriptionKey).add(ts);
+						subIdStats.put(subId, ts);
+					}
+				}
+			} else {
+				// replaced or cancelled while the reply was outstanding
+				for(Integer subId : subIds) {
+					unsubscribeId(dh.subscriptionKey, subId, holders);
+				}
+			}
+		}
+		sendHolders(holders);
+		if(active) {
+			setShortSubs(subIds, dh.subscriptionKey, true);
+		}
+	}
+	
+	/**
+	 * Buffers a short format message while the id is looked up. The first
+	 * message for an unknown id starts the lookup.
+	 * @return true if the message was buffered (or dropped)
+	 */
+	private boolean bufferUnknownShort(int id, String message, boolean isUnknown) {
+		boolean request = false;
+		synchronized (unknownShort) {
+			List<String> buffer = unknownShort.get(id);
+			if(buffer==null) {
+				if(!isUnknown)
+					return false;
+				unknownShort.put(id, buffer = new ArrayList<String>());
+				hasUnknownShort = true;
+				unknownShortRequests.add(id);
+				if(!unknownShortRequestScheduled) {
+					unknownShortRequestScheduled = true;
+					request = true;
+				}
+			}
+			if(buffer.size() >= MAX_BUFFERED_PER_ID || unknownShortBuffered >= MAX_BUFFERED) {
+				System.err.println("Dropping message for unknown short property " + id + ", buffer is full");
+			} else {
+				buffer.add(message);
+				unknownShortBuffered++;
+			}
+		}
+		if(request) {
+			getTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					requestUnknownShort();
+				}
+			}, UNKNOWN_SHORT_REQUEST_DELAY);
+		}
+		return true;
+	}
+	
+	private void requestUnknownShort() {
+		List<Integer> ids;
+		synchronized (unknownShort) {
+			unknownShortRequestScheduled = false;
+			if(unknownShortRequests.isEmpty())
+				return;
+			ids = unknownShortRequests;
+			unknownShortRequests = new ArrayList<Integer>();
+		}
+		System.err.println("No such short properties: " + ids + " ... asking server and buffering messages...");
+		requestPrpInfo(ids);
+	}
+	
+	/**
+	 * Processes (or drops) the messages buffered for an id in order. Messages
+	 * arriving meanwhile are appended and processed as well before the
+	 * buffer goes away.
+	 */
+	private void flushUnknownShort(int id, boolean resolved) {
+		while(true) {
+			List<String> messages;
+			synchronized (unknownShort) {
+				List<String> buffer = unknownShort.get(id);
+				if(buffer==null)
+					return;
+				if(buffer.isEmpty() || !resolved) {
+					if(!resolved && !buffer.isEmpty())
+						System.err.println("Dropping " + buffer.size() + " messages for unknown short property " + id);
+					unknownShortBuffered -= buffer.size();
+					unknownShort.remove(id);
+					hasUnknownShort = !unknownShort.isEmpty();
+					return;
+				}
+				messages = new ArrayList<String>(buffer);
+				buffer.clear();
+				unknownShortBuffered -= messages.size();
+			}
+			for(String message : messages) {
+				processContextInformation(message, true);
+			}
+		}
+	}
+	
 	public void processContextInformation(String message) {
+		processContextInformation(message, false);
+	}
+	
+	private void processContextInformation(String message, boolean fromBuffer) {
 		ContextMessage cm = ContextMessage.fromString(message);
 		if(cm!=null) {
 			String contextName = cm.getContextName();
@@ -1105,20 +2709,24 @@ public class ContextManager implements ContextClientListener, ContextListener {
 				}
 			}
 			
+			Context ctx = null;
+			
 			if(cm.isShortFormat()) {
 				try {
-					Integer prpId = Integer.parseInt(cm.getShortPrefix());
-					PropertyAbstraction pa = penv.getPropertyById(prpId);
+					int prpId = Integer.parseInt(cm.getShortPrefix());
+					ShortProperty sp = shortIndex.get(prpId);
 					
-					if(pa!=null) {
-						contextName = pa.getSource().getContext().getName();
-						ce = new ContextElement(pa.getSource().getName(), pa.getName(), ce.getValue(), ce.getTimestamp(), ce.isPersistent(), ce.getTypeTags());
-						ctxId = pa.getSource().getContext().getId();
-					} else {
-						System.err.println("No such short property: " + prpId + " ... asking server and re-scheduling processing...");
-						requestPrpInfo(prpId, message);
+					if(sp==null && fromBuffer) {
+						System.err.println("Lost context to unknown property " + prpId);
 						return;
 					}
+					// keep the order while earlier messages for this id are buffered
+					if((sp==null || (hasUnknownShort && !fromBuffer)) && bufferUnknownShort(prpId, message, sp==null))
+						return;
+					
+					contextName = sp.context;
+					ce = new ContextElement(sp.source, sp.property, ce.getValue(), ce.getTimestamp(), ce.isPersistent(), ce.getTypeTags());
+					ctx = sp.ctx;
 					
 					
 				} catch(NumberFormatException nfe) {
@@ -1127,44 +2735,132 @@ public class ContextManager implements ContextClientListener, ContextListener {
 				}
 			}
 			
-			ContextAbstraction ca = penv.getContextByName(contextName);
-			Context ctx = ca == null ? null : (Context)ca.getData(caCtx);
-
-			if(ctx==null) {
-				if(ctxId == null) {
-					 System.err.println("No id for context creation!");
-					 return;
-				} else {
-					//System.out.println("Creating context at context event... " + ctxId);
-					ctx = new Context(contextName);
-					ctx.addContextListener(this);
-					ca = penv.injectContext(ctxId, contextName);
-					ca.setData(caCtx, ctx);
-				}
-			}
-			
 			ContextMessage.Type cmt = cm.getType();
-			
-			ctx.setCurrentIdentifier(cm.getListenerId());
-			ctx.setCurrentKey(null);
+			String listenerId = cm.getListenerId();
+			Object key = null;
 			
 			try {
-				Integer listenerKey = Integer.parseInt(cm.getListenerId());
-				synchronized (subscriptionMap) {
-					ctx.setCurrentKey(subscriptionMap.get(listenerKey));
-				}
+				int listenerKey = Integer.parseInt(listenerId);
+				if(cancelledSubIds.containsKey(listenerKey))
+					return;
+				key = subscriptionMap.get(listenerKey);
+				TrafficStats ts = subIdStats.get(listenerKey);
+				if(ts!=null)
+					ts.record(message.length());
 			} catch(NumberFormatException nfe) {
 				
 			}
+			
+			// the cache sees every value, also the ones a policy holds back
+			if(cmt == ContextMessage.Type.Context && valueCacheEnabled) {
+				valueCache.update(contextName, ce, true);
+			}
+			
+			// policies are applied before anything is merged or dispatched
+			if(cmt == ContextMessage.Type.Context && key != null && !deliveryPolicies.isEmpty()) {
+				KeyDelivery kd = deliveryPolicies.get(key);
+				if(kd != null && !admit(kd, contextName, ctxId, ce, listenerId, key))
+					return;
+			}
+			
+			deliverContextMessage(ctx, contextName, ctxId, cmt, ce, listenerId, key);
+		}
+	}
+	
+	/**
+	 * @return true if the update is to be delivered now
+	 */
+	private boolean admit(KeyDelivery kd, String contextName, Integer ctxId, ContextElement ce, String listenerId, Object key) {
+		String pk = storeKey(contextName, ce.getSourceIdentifier(), ce.getPropertyIdentifier());
+		PropertyDelivery pd = kd.properties.get(pk);
+		if(pd==null) {
+			PropertyDelivery npd = new PropertyDelivery();
+			pd = kd.properties.putIfAbsent(pk, npd);
+			if(pd==null)
+				pd = npd;
+		}
+		
+		DeliveryPolicy policy = kd.policy;
+		synchronized (pd) {
+			if(!policy.changedEnough(pd.lastValue, ce.getValue()))
+				return false;
+			
+			long now = System.currentTimeMillis();
+			if(policy.getWindow() > 0) {
+				if(policy.getMode() == DeliveryPolicy.Window.LATEST) {
+					boolean schedule = pd.held == null;
+					pd.held = new HeldEvent(contextName, ctxId, ce, listenerId, key);
+					if(schedule)
+						scheduleHeld(pd, policy.getWindow());
+					return false;
+				}
+				if(now - pd.windowStart < policy.getWindow())
+					return false;
+				pd.windowStart = now;
+			} else if(now - pd.lastDelivered < policy.getMinInterval()) {
+				return false;
+			}
+			
+			pd.lastDelivered = now;
+			pd.lastValue = ce.getValue();
+			return true;
+		}
+	}
+	
+	private synchronized Timer getTimer() {
+		if(timer==null)
+			timer = new Timer("ContextManager", true);
+		return timer;
+	}
+	
+	private void scheduleHeld(final PropertyDelivery pd, long delay) {
+		getTimer().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				HeldEvent h;
+				synchronized (pd) {
+					h = pd.held;
+					pd.held = null;
+					if(h==null)
+						return;
+					pd.lastDelivered = System.currentTimeMillis();
+					pd.lastValue = h.ce.getValue();
+				}
+				deliverContextMessage(null, h.contextName, h.ctxId, ContextMessage.Type.Context, h.ce, h.listenerId, h.key);
+			}
+		}, delay);
+	}
+	
+	private void deliverContextMessage(Context ctx, String contextName, Integer ctxId, ContextMessage.Type cmt, ContextElement ce, String listenerId, Object key) {
+		if(ctx==null)
+			ctx = (Context)idIndex.getContextData(contextName);
+
+		if(ctx==null) {
+			if(ctxId == null) {
+				 System.err.println("No id for context creation!");
+				 return;
+			} else {
+				//System.out.println("Creating context at context event... " + ctxId);
+				updateContextMap(contextName, ctxId);
+				ctx = (Context)idIndex.getContextData(contextName);
+			}
+		}
+		
+		// held updates are delivered from the timer thread
+		synchronized (ctx) {
+			ctx.setCurrentIdentifier(listenerId);
+			ctx.setCurrentKey(key);
 
 			switch(cmt) {
 			case Context:
 				ctx.mergeContextElement(ce);
 				break;
 			case PropertyRemoved:
+				valueCache.remove(contextName, ce.getSourceIdentifier(), ce.getPropertyIdentifier());
 				ctx.removeSourceProperty(ce.getSourceIdentifier(), ce.getPropertyIdentifier());
 				break;
 			case SourceRemoved:
+				valueCache.removeSource(contextName, ce.getSourceIdentifier());
 				ctx.removeSource(ce.getSourceIdentifier());
 			}
 		}
@@ -1336,45 +3032,104 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		}
 	}
 	
+	// conflating listeners only queue the update and need no thread
 	private void invokeProcessContext(ContextListener cl, Context ctx, ContextElement ce) {
-		new ContextChangeInvokeThread(cl, ctx, ce).start();
+		if(cl instanceof ConflatingListener)
+			cl.processContext(ctx, ce);
+		else
+			new ContextChangeInvokeThread(cl, ctx, ce).start();
 	}
 	
 	private void invokeContextChange(ContextListener cl, Context ctx, String source, String property, boolean isSrc, boolean added) {
-		new ContextChangeInvokeThread(cl, ctx, source, property, isSrc, added).start();
+		if(!(cl instanceof ConflatingListener)) {
+			new ContextChangeInvokeThread(cl, ctx, source, property, isSrc, added).start();
+		} else if(isSrc) {
+			if(added)
+				cl.sourceAdded(ctx, source, property);
+			else
+				cl.sourceRemoved(ctx, source);
+		} else {
+			if(added)
+				cl.propertyAdded(ctx, source, property);
+			else
+				cl.propertyRemoved(ctx, source, property);
+		}
 	}
 
 	public void processContext(Context ctx, ContextElement ce) {
-		for(ContextListener cl : listeners)
+		Set<String> tags = ce.getTypeTags();
+		if(tags==null)
+			tags = Collections.emptySet();
+		for(ContextListener cl : listeners.match(ctx.getName(), ce.getSourceIdentifier(), ce.getPropertyIdentifier(), tags))
 			invokeProcessContext(cl, ctx, ce);
 	}
 
 	public void propertyAdded(Context ctx, String source, String property) {
-		for(ContextListener cl : listeners)
+		namespace.propertyAdded(ctx.getName(), source, property, getPropertyId(ctx.getName(), source, property));
+		for(ContextListener cl : listeners.match(ctx.getName(), source, property, null))
 			invokeContextChange(cl, ctx, source, property, false, true);
 	}
 
 	public void propertyRemoved(Context ctx, String source, String property) {
-		for(ContextListener cl : listeners)
+		namespace.propertyRemoved(ctx.getName(), source, property);
+		for(ContextListener cl : listeners.match(ctx.getName(), source, property, null))
 			invokeContextChange(cl, ctx, source, property, false, false);
 	}
 
 	public void sourceAdded(Context ctx, String source, String property) {
-		for(ContextListener cl : listeners)
+		namespace.sourceAdded(ctx.getName(), source, getSourceId(ctx.getName(), source));
+		if(property!=null) {
+			namespace.propertyAdded(ctx.getName(), source, property, getPropertyId(ctx.getName(), source, property));
+		}
+		for(ContextListener cl : listeners.match(ctx.getName(), source, property, null))
 			invokeContextChange(cl, ctx, source, property, true, true);
 	}
 
 	public void sourceRemoved(Context ctx, String source) {
-		for(ContextListener cl : listeners)
+		namespace.sourceRemoved(ctx.getName(), source);
+		for(ContextListener cl : listeners.match(ctx.getName(), source, null, null))
 			invokeContextChange(cl, ctx, source, null, true, false);
 	}
 	
 	public boolean addContextListener(ContextListener cl) {
-		return listeners.add(cl);
+		listeners.add(cl, Context.ALL_CONTEXTS, Context.ALL_SOURCES, Context.ALL_PROPERTIES, null);
+		return true;
+	}
+	
+	/**
+	 * Adds a listener that only gets events for matching elements. Wildcards
+	 * ({@link Context#ALL_CONTEXTS} etc.) can be used, without tags all
+	 * events of the element match; otherwise an event needs one of the tags.
+	 * Listener changes (added/removed) ignore the tags.
+	 */
+	public boolean addContextListener(ContextListener cl, String context, String source, String property, String...tags) {
+		listeners.add(cl, context, source, property, Arrays.asList(tags));
+		return true;
+	}
+	
+	/**
+	 * Adds a listener that gets its updates from one thread. If it falls
+	 * behind only the newest value per property is kept.
+	 * See {@link ConflatingListener}.
+	 */
+	public boolean addConflatingContextListener(ContextListener cl, String context, String source, String property, String...tags) {
+		ConflatingListener wrapper = conflating.get(cl);
+		if(wrapper==null) {
+			wrapper = new ConflatingListener(cl);
+			conflating.put(cl, wrapper);
+		}
+		listeners.add(wrapper, context, source, property, Arrays.asList(tags));
+		return true;
+	}
+	
+	public boolean addConflatingContextListener(ContextListener cl) {
+		return addConflatingContextListener(cl, Context.ALL_CONTEXTS, Context.ALL_SOURCES, Context.ALL_PROPERTIES);
 	}
 
 	public boolean removeContextListener(ContextListener cl) {
-		return listeners.remove(cl);
+		ConflatingListener wrapper = conflating.remove(cl);
+		boolean removed = wrapper != null && listeners.remove(wrapper);
+		return listeners.remove(cl) || removed;
 	}
 	
 	public boolean addManagerListener(Listener l) {
@@ -1386,40 +3141,74 @@ public class ContextManager implements ContextClientListener, ContextListener {
 	}
 	
 	public void reset() {
-		penv = new PassiveEnvironment();
-		synchronized (subscriptionMap) {
-			subscriptionMap.clear();
-		}
+		synchronized(mapUpdateDummy) {
+			penv = new PassiveEnvironment();
+			idIndex.clear();
+			shortIndex.clear();
+			contextObjects.clear();
+		}
+		subscriptionMap.clear();
+		subIdStats.clear();
+		cancelledSubIds.clear();
+		for(TrafficStats.Group tg : keyStats.values()) {
+			tg.retireAll();
+		}
+		valueCache.clear();
+		namespace.clear();
 	}
 	
 	public String requestContextList() {
-		DataHolder dh = DataHolder.forCtxList(getPrefix());
-		synchronized (setHolderMap) {
-			setHolderMap.put(dh.prefix, dh);
+		return requestContextList(false);
+	}
+	
+	public String requestContextList(boolean refresh) {
+		if(listingCacheEnabled && !refresh) {
+			Map<Integer, String> cm = namespace.getContextList();
+			if(cm!=null) {
+				String prefix = getLocalPrefix();
+				invokeContextListMessage(prefix, cm);
+				return prefix;
+			}
 		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTCTX);
-		return dh.prefix;
+		
+		return sendQuery(DataHolder.forCtxList(null), Protocol.LISTCTX);
 	}
 	
 	public String requestSourceList(String context) {
-		DataHolder dh = DataHolder.forSrcList(getPrefix(), context);
-		synchronized (setHolderMap) {
-			setHolderMap.put(dh.prefix, dh);
+		return requestSourceList(context, false);
+	}
+	
+	public String requestSourceList(String context, boolean refresh) {
+		if(listingCacheEnabled && !refresh) {
+			Map<Integer, String> sm = namespace.getSourceList(context);
+			if(sm!=null) {
+				String prefix = getLocalPrefix();
+				invokeSourceListMessage(prefix, context, sm);
+				return prefix;
+			}
 		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTSRC + " @"+Util.urlencode(context));
-		return dh.prefix;
+		
+		return sendQuery(DataHolder.forSrcList(null, context), Protocol.LISTSRC + " @"+names.encode(context));
 	}
 	
 	public String requestPropertyList(String context, String source) {
+		return requestPropertyList(context, source, false);
+	}
+	
+	public String requestPropertyList(String context, String source, boolean refresh) {
 		if(source.endsWith("*"))
 			source = source.substring(0, source.length()-1);
 		
-		DataHolder dh = DataHolder.forPrpList(getPrefix(), context, source);
-		synchronized (setHolderMap) {
-			setHolderMap.put(dh.prefix, dh);
+		if(listingCacheEnabled && !refresh) {
+			Map<Integer, String> pm = namespace.getPropertyList(context, source);
+			if(pm!=null) {
+				String prefix = getLocalPrefix();
+				invokePropertyListMessage(prefix, context, source, pm);
+				return prefix;
+			}
 		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.LISTPRP + " @"+Util.urlencode(context) + " 1 @" + Util.urlencode(source));
-		return dh.prefix;
+		
+		return sendQuery(DataHolder.forPrpList(null, context, source), Protocol.LISTPRP + " @"+names.encode(context) + " 1 @" + names.encode(source));
 	}
 	
 	public String requestPropertyUpdate(String context, String source, String property) {
@@ -1428,12 +3217,92 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		if(property.endsWith("*"))
 			property = property.substring(0, property.length()-1);
 		
+		if(valueCacheEnabled) {
+			ContextElement ce = valueCache.get(context, source, property);
+			if(ce!=null) {
+				String prefix = getLocalPrefix();
+				invokePropertyUpdateMessage(prefix, context, source, ce);
+				return prefix;
+			}
+		}
 		
-		DataHolder dh = DataHolder.forPrpUpdate(getPrefix(), context, source, property);
+		return sendQuery(DataHolder.forPrpUpdate(null, context, source, property), Protocol.GETPRP + " @"+names.encode(context) + " @" + names.encode(source) + " @" + names.encode(property));
+	}
+	
+	/**
+	 * Enables answering {@link #requestPropertyUpdate(String, String, String)} from
+	 * the latest known value. Values received through a subscription are used while
+	 * the connection stays up, fetched values for at most ttl milliseconds.
+	 */
+	public void setPropertyCacheEnabled(boolean enabled, long ttl) {
+		valueCache.setTTL(ttl);
+		if(!enabled) {
+			valueCache.clear();
+		}
+		valueCacheEnabled = enabled;
+	}
+	
+	public boolean isPropertyCacheEnabled() {
+		return valueCacheEnabled;
+	}
+	
+	/**
+	 * Enables answering the list requests from the last listing received from the
+	 * server, kept up to date by namespace events. Use the refresh variants to
+	 * force a server round trip.
+	 */
+	public void setListingCacheEnabled(boolean enabled) {
+		listingCacheEnabled = enabled;
+	}
+	
+	public boolean isListingCacheEnabled() {
+		return listingCacheEnabled;
+	}
+	
+	/**
+	 * @return the cached value or null if there is no valid value
+	 */
+	public ContextElement getCachedProperty(String context, String source, String property) {
+		if(!valueCacheEnabled)
+			return null;
+		
+		return valueCache.get(context, source, property);
+	}
+	
+	public long getPropertyCacheHits() {
+		return valueCache.getHits();
+	}
+
+	public long getPropertyCacheMisses() {
+		return valueCache.getMisses();
+	}
+	
+	/**
+	 * @return the name encoding cache (e.g. for its hit rate)
+	 */
+	public static NameCodec getNameCodec() {
+		return names;
+	}
+	
+	/**
+	 * Sends a query (or id request) unless an identical one is still in flight.
+	 * In that case the prefix of the pending request is returned and all
+	 * callers get their answer from the one reply.
+	 */
+	private String sendQuery(DataHolder dh, String query) {
+		synchronized (pendingQueries) {
+			String inflight = pendingQueries.get(query);
+			if(inflight!=null)
+				return inflight;
+			
+			dh.prefix = getPrefix();
+			dh.query = query;
+			pendingQueries.put(query, dh.prefix);
+		}
 		synchronized (setHolderMap) {
 			setHolderMap.put(dh.prefix, dh);
 		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.GETPRP + " @"+Util.urlencode(context) + " @" + Util.urlencode(source) + " @" + Util.urlencode(property));
+		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + query);
 		return dh.prefix;
 	}
 	
@@ -1471,42 +3340,59 @@ public class ContextManager implements ContextClientListener, ContextListener {
 		sb.append(' ');
 		sb.append(Protocol.HISTORY);
 		sb.append('@');
-		sb.append(Util.urlencode(context));
+		sb.append(names.encode(context));
 		sb.append(' ');
 		sb.append('@');
-		sb.append(Util.urlencode(source));
+		sb.append(names.encode(source));
 		sb.append(' ');
 		sb.append('@');
-		sb.append(Util.urlencode(property));
+		sb.append(names.encode(property));
 		sb.append(" get 0 -1 ");
 		sb.append(limit);
 		if(withTags!=null) {
 			sb.append(" tags");
 			for(String tag : withTags) {
 				sb.append(' ');
-				sb.append(Util.urlencode(tag));
+				sb.append(names.encode(tag));
 			}
 		}
 		doCommand(sb.toString());
 		return dh.prefix;
 	}
 	
-	private String requestPrpInfo(Integer id, String ctxMessage) {
-		DataHolder dh = DataHolder.forUnknownPropertyContext(getPrefix(), ctxMessage);
+	// one GETIDINFO per id, queued at once
+	private void requestPrpInfo(List<Integer> ids) {
+		List<DataHolder> holders = new ArrayList<DataHolder>(ids.size());
+		List<String> commands = new ArrayList<String>(ids.size());
+		for(Integer id : ids) {
+			DataHolder dh = DataHolder.forUnknownPropertyContext(getPrefix(), id);
+			holders.add(dh);
+			commands.add(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.GETIDINFO + " " + id);
+		}
 		synchronized (setHolderMap) {
-			setHolderMap.put(dh.prefix, dh);
+			for(DataHolder dh : holders) {
+				setHolderMap.put(dh.prefix, dh);
+			}
 		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.GETIDINFO + " " + id);
-		return dh.prefix;
+		doCommands(commands);
 	}
 	
-	private String setShortSub(Integer id, Object key, boolean setShort) {
-		DataHolder dh = DataHolder.forShortSub(getPrefix(), key, id, setShort);
-		synchronized (setHolderMap) {
-			setHolderMap.put(dh.prefix, dh);
-		}
-		doCommand(Protocol.PREFIX_CHAR + dh.prefix + " " + Protocol.SHORTSUB + " " + (setShort ? "true " : "false ") + id);
-		return dh.prefix;
+	/**
+	 * SHORTSUB takes a single id; the commands for all ids are queued at once
+	 * and their replies are tracked together.
+	 */
+	private void setShortSubs(List<Integer> ids, Object key, boolean setShort) {
+		if(ids.isEmpty())
+			return;
+		ShortSubBatch batch = new ShortSubBatch(ids.size());
+		List<DataHolder> holders = new ArrayList<DataHolder>(ids.size());
+		for(Integer id : ids) {
+			DataHolder dh = DataHolder.forShortSub(getPrefix(), key, id, setShort);
+			dh.shortSubBatch = batch;
+			dh.subscriptionString = Protocol.SHORTSUB + " " + (setShort ? "true " : "false ") + id;
+			holders.add(dh);
+		}
+		sendHolders(holders);
 	}
 
 }
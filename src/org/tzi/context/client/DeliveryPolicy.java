@@ -0,0 +1,94 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+/**
+ * Limits how often value updates of a subscription are delivered, per property.
+ * <ul>
+ * <li>maxRate: at most this many updates per second, the rest is dropped</li>
+ * <li>window: one update per window; FIRST delivers the first update right away,
+ * LATEST delivers the newest update at the end of the window</li>
+ * <li>minDelta: numeric values have to differ at least this much from the last
+ * delivered value, other values have to differ at all</li>
+ * </ul>
+ * A value of 0 disables a limit. A window takes precedence over maxRate.
+ */
+public class DeliveryPolicy {
+
+	public static enum Window { FIRST, LATEST };
+
+	private final double maxRate;
+	private final long window;
+	private final Window mode;
+	private final double minDelta;
+
+	public DeliveryPolicy(double maxRate, long window, Window mode, double minDelta) {
+		this.maxRate = maxRate;
+		this.window = window;
+		this.mode = mode == null ? Window.LATEST : mode;
+		this.minDelta = minDelta;
+	}
+
+	public static DeliveryPolicy maxRate(double perSecond) {
+		return new DeliveryPolicy(perSecond, 0, null, 0);
+	}
+
+	public static DeliveryPolicy window(long window, Window mode) {
+		return new DeliveryPolicy(0, window, mode, 0);
+	}
+
+	public DeliveryPolicy withMinDelta(double minDelta) {
+		return new DeliveryPolicy(maxRate, window, mode, minDelta);
+	}
+
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	/**
+	 * @return minimum time between two updates in ms derived from maxRate
+	 */
+	public long getMinInterval() {
+		return maxRate > 0 ? (long)(1000.0 / maxRate) : 0;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public Window getMode() {
+		return mode;
+	}
+
+	public double getMinDelta() {
+		return minDelta;
+	}
+
+	/**
+	 * @return true if value is far enough from last
+	 */
+	public boolean changedEnough(String last, String value) {
+		if(minDelta <= 0 || last == null)
+			return true;
+		if(value == null)
+			return false;
+		try {
+			return Math.abs(Double.parseDouble(value) - Double.parseDouble(last)) >= minDelta;
+		} catch(NumberFormatException nfe) {
+			return !value.equals(last);
+		}
+	}
+}
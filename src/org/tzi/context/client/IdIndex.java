@@ -0,0 +1,152 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Name -> id index for contexts, sources and properties.
+ * Lookups do not lock; updates are expected to be serialized by the caller.
+ */
+public class IdIndex {
+
+	private static class SourceNode {
+		private volatile Integer id;
+		private final ConcurrentHashMap<String, Integer> properties = new ConcurrentHashMap<String, Integer>();
+
+		private SourceNode(Integer id) {
+			this.id = id;
+		}
+	}
+
+	private static class ContextNode {
+		private volatile Integer id;
+		private volatile Object data;
+		private final ConcurrentHashMap<String, SourceNode> sources = new ConcurrentHashMap<String, SourceNode>();
+
+		private ContextNode(Integer id, Object data) {
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	private final ConcurrentHashMap<String, ContextNode> contexts = new ConcurrentHashMap<String, ContextNode>();
+
+	// changes whenever a known id is replaced or dropped
+	private volatile int generation = 0;
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public Integer getContextId(String context) {
+		ContextNode cn = contexts.get(context);
+		return cn == null ? null : cn.id;
+	}
+
+	public Object getContextData(String context) {
+		ContextNode cn = contexts.get(context);
+		return cn == null ? null : cn.data;
+	}
+
+	public Integer getSourceId(String context, String source) {
+		ContextNode cn = contexts.get(context);
+		if(cn == null)
+			return null;
+		SourceNode sn = cn.sources.get(source);
+		return sn == null ? null : sn.id;
+	}
+
+	public Integer getPropertyId(String context, String source, String property) {
+		ContextNode cn = contexts.get(context);
+		if(cn == null)
+			return null;
+		SourceNode sn = cn.sources.get(source);
+		if(sn == null)
+			return null;
+		return sn.properties.get(property);
+	}
+
+	public void putContext(String context, Integer id, Object data) {
+		ContextNode cn = contexts.get(context);
+		if(cn == null) {
+			contexts.put(context, new ContextNode(id, data));
+		} else {
+			if(cn.id != null && !cn.id.equals(id))
+				generation++;
+			cn.id = id;
+			cn.data = data;
+		}
+	}
+
+	public void putSource(String context, Integer contextId, String source, Integer id) {
+		ContextNode cn = contexts.get(context);
+		if(cn == null) {
+			contexts.put(context, cn = new ContextNode(contextId, null));
+		}
+		SourceNode sn = cn.sources.get(source);
+		if(sn == null) {
+			cn.sources.put(source, new SourceNode(id));
+		} else {
+			if(sn.id != null && !sn.id.equals(id))
+				generation++;
+			sn.id = id;
+		}
+	}
+
+	public void putProperty(String context, Integer contextId, String source, Integer sourceId, String property, Integer id) {
+		ContextNode cn = contexts.get(context);
+		if(cn == null) {
+			contexts.put(context, cn = new ContextNode(contextId, null));
+		}
+		SourceNode sn = cn.sources.get(source);
+		if(sn == null) {
+			cn.sources.put(source, sn = new SourceNode(sourceId));
+		}
+		Integer old = sn.properties.put(property, id);
+		if(old != null && !old.equals(id))
+			generation++;
+	}
+
+	/**
+	 * @return all properties whose context, source and property id are known
+	 */
+	public List<IdMapStore.Entry> getPropertyEntries() {
+		List<IdMapStore.Entry> entries = new ArrayList<IdMapStore.Entry>();
+		for(Map.Entry<String, ContextNode> ce : contexts.entrySet()) {
+			Integer ctxId = ce.getValue().id;
+			if(ctxId == null)
+				continue;
+			for(Map.Entry<String, SourceNode> se : ce.getValue().sources.entrySet()) {
+				Integer srcId = se.getValue().id;
+				if(srcId == null)
+					continue;
+				for(Map.Entry<String, Integer> pe : se.getValue().properties.entrySet()) {
+					entries.add(new IdMapStore.Entry(ce.getKey(), ctxId, se.getKey(), srcId, pe.getKey(), pe.getValue()));
+				}
+			}
+		}
+		return entries;
+	}
+
+	public void clear() {
+		generation++;
+		contexts.clear();
+	}
+}
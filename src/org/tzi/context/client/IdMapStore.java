@@ -0,0 +1,293 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent property name -> id mappings for one server.
+ * The file is memory mapped and only appended to. It is compacted in place
+ * once it holds too many outdated records. Entries stored for a different
+ * server key are discarded on open.
+ * <p>
+ * Layout: magic, version, end of data, key; then records of
+ * (op, context id, source id, property id, context, source, property).
+ */
+public class IdMapStore {
+
+	public static class Entry {
+		public final String context;
+		public final String source;
+		public final String property;
+		public final int contextId;
+		public final int sourceId;
+		public final int propertyId;
+
+		public Entry(String context, int contextId, String source, int sourceId, String property, int propertyId) {
+			this.context = context;
+			this.contextId = contextId;
+			this.source = source;
+			this.sourceId = sourceId;
+			this.property = property;
+			this.propertyId = propertyId;
+		}
+
+		private boolean sameIds(Entry e) {
+			return e.contextId == contextId && e.sourceId == sourceId && e.propertyId == propertyId;
+		}
+	}
+
+	private static final int MAGIC = 0x43494d53; // CIMS
+	private static final int VERSION = 1;
+	private static final int OFFS_END = 8;
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private File file;
+	private String key;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	private int dataStart;
+	private int end;
+	private int records = 0;
+
+	private Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	public IdMapStore(File file, String key) throws IOException {
+		this.file = file;
+		this.key = key;
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long size = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+
+		if(!load()) {
+			entries.clear();
+			records = 0;
+			writeHeader();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	private static String entryKey(String context, String source, String property) {
+		return context + '\0' + source + '\0' + property;
+	}
+
+	private boolean load() {
+		try {
+			buffer.position(0);
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return false;
+
+			int storedEnd = buffer.getInt();
+			String storedKey = readString();
+			if(storedKey == null || !storedKey.equals(key))
+				return false;
+
+			dataStart = buffer.position();
+			if(storedEnd < dataStart || storedEnd > buffer.capacity())
+				return false;
+
+			end = dataStart;
+			while(buffer.position() < storedEnd) {
+				byte op = buffer.get();
+				int ctxId = buffer.getInt();
+				int srcId = buffer.getInt();
+				int prpId = buffer.getInt();
+				String ctx = readString();
+				String src = readString();
+				String prp = readString();
+
+				if(ctx == null || src == null || prp == null || buffer.position() > storedEnd)
+					break;
+
+				if(op == OP_PUT) {
+					entries.put(entryKey(ctx, src, prp), new Entry(ctx, ctxId, src, srcId, prp, prpId));
+				} else if(op == OP_REMOVE) {
+					entries.remove(entryKey(ctx, src, prp));
+				} else {
+					break;
+				}
+				records++;
+				end = buffer.position();
+			}
+
+			if(end != storedEnd) {
+				System.err.println("Id cache " + file + " was truncated, keeping " + records + " records");
+				buffer.putInt(OFFS_END, end);
+			}
+
+			return true;
+		} catch(BufferUnderflowException bue) {
+			return false;
+		} catch(IllegalArgumentException iae) {
+			return false;
+		}
+	}
+
+	private String readString() {
+		int len = buffer.getShort() & 0xFFFF;
+		if(len > buffer.remaining())
+			return null;
+		byte [] b = new byte [len];
+		buffer.get(b);
+		return new String(b, utf8);
+	}
+
+	private void writeHeader() throws IOException {
+		byte [] kb = key.getBytes(utf8);
+		ensureCapacity(12 + 2 + kb.length);
+		buffer.position(0);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(0);
+		buffer.putShort((short)kb.length);
+		buffer.put(kb);
+		dataStart = end = buffer.position();
+		buffer.putInt(OFFS_END, end);
+	}
+
+	private void ensureCapacity(int needed) throws IOException {
+		if(needed <= buffer.capacity())
+			return;
+
+		long newSize = buffer.capacity();
+		while(newSize < needed)
+			newSize *= 2;
+
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+	}
+
+	private boolean append(byte op, Entry e) throws IOException {
+		byte [] cb = e.context.getBytes(utf8);
+		byte [] sb = e.source.getBytes(utf8);
+		byte [] pb = e.property.getBytes(utf8);
+
+		if(cb.length > 0xFFFF || sb.length > 0xFFFF || pb.length > 0xFFFF)
+			return false;
+
+		ensureCapacity(end + 1 + 12 + 6 + cb.length + sb.length + pb.length);
+
+		buffer.position(end);
+		buffer.put(op);
+		buffer.putInt(e.contextId);
+		buffer.putInt(e.sourceId);
+		buffer.putInt(e.propertyId);
+		buffer.putShort((short)cb.length);
+		buffer.put(cb);
+		buffer.putShort((short)sb.length);
+		buffer.put(sb);
+		buffer.putShort((short)pb.length);
+		buffer.put(pb);
+
+		end = buffer.position();
+		// publish the record only after it is complete
+		buffer.putInt(OFFS_END, end);
+		records++;
+
+		return true;
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public synchronized Entry get(String context, String source, String property) {
+		return entries.get(entryKey(context, source, property));
+	}
+
+	public synchronized void put(Entry e) throws IOException {
+		String k = entryKey(e.context, e.source, e.property);
+		Entry old = entries.get(k);
+		if(old != null && old.sameIds(e))
+			return;
+
+		if(append(OP_PUT, e)) {
+			entries.put(k, e);
+			compactIfNeeded();
+		}
+	}
+
+	public synchronized void remove(String context, String source, String property) throws IOException {
+		Entry old = entries.remove(entryKey(context, source, property));
+		if(old == null)
+			return;
+
+		append(OP_REMOVE, old);
+		compactIfNeeded();
+	}
+
+	private void compactIfNeeded() throws IOException {
+		if(records > 1024 && records > 2 * entries.size())
+			compact();
+	}
+
+	public synchronized void compact() throws IOException {
+		// a crash while rewriting leaves an empty but valid store
+		end = dataStart;
+		buffer.putInt(OFFS_END, end);
+		buffer.force();
+
+		records = 0;
+		for(Entry e : entries.values()) {
+			append(OP_PUT, e);
+		}
+		buffer.force();
+	}
+
+	public synchronized void clear() throws IOException {
+		entries.clear();
+		records = 0;
+		end = dataStart;
+		buffer.putInt(OFFS_END, end);
+	}
+
+	public synchronized void close() {
+		try {
+			buffer.force();
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
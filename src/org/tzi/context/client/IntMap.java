@@ -0,0 +1,170 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash map with primitive int keys.
+ * Reads do not lock and never see a partially updated slot; writes are
+ * synchronized on the map. Removed slots are marked and reused, the table
+ * is rebuilt when too many slots are in use.
+ */
+public class IntMap<V> {
+
+	private static class Entry<V> {
+		private final int key;
+		private final V value;
+
+		private Entry(int key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static final Entry<Object> REMOVED = new Entry<Object>(0, null);
+
+	private volatile AtomicReferenceArray<Entry<V>> table;
+	private int size = 0;
+	private int used = 0;
+
+	public IntMap() {
+		this(16);
+	}
+
+	public IntMap(int capacity) {
+		int n = 16;
+		while(n < capacity * 2)
+			n <<= 1;
+		table = new AtomicReferenceArray<Entry<V>>(n);
+	}
+
+	private static int hash(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Entry<V> removed() {
+		return (Entry<V>)(Entry<?>)REMOVED;
+	}
+
+	public V get(int key) {
+		AtomicReferenceArray<Entry<V>> t = table;
+		int mask = t.length() - 1;
+		for(int i = hash(key, mask); ; i = (i + 1) & mask) {
+			Entry<V> e = t.get(i);
+			if(e == null)
+				return null;
+			if(e != REMOVED && e.key == key)
+				return e.value;
+		}
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @param value non-null value
+	 * @return the previous value or null
+	 */
+	public synchronized V put(int key, V value) {
+		if(value == null)
+			throw new NullPointerException();
+
+		AtomicReferenceArray<Entry<V>> t = table;
+		int mask = t.length() - 1;
+		int free = -1;
+		int i = hash(key, mask);
+		for( ; ; i = (i + 1) & mask) {
+			Entry<V> e = t.get(i);
+			if(e == null)
+				break;
+			if(e == REMOVED) {
+				if(free < 0)
+					free = i;
+			} else if(e.key == key) {
+				t.set(i, new Entry<V>(key, value));
+				return e.value;
+			}
+		}
+
+		if(free >= 0) {
+			t.set(free, new Entry<V>(key, value));
+		} else {
+			t.set(i, new Entry<V>(key, value));
+			used++;
+		}
+		size++;
+
+		if(used * 2 > t.length())
+			rebuild();
+
+		return null;
+	}
+
+	public synchronized V remove(int key) {
+		AtomicReferenceArray<Entry<V>> t = table;
+		int mask = t.length() - 1;
+		for(int i = hash(key, mask); ; i = (i + 1) & mask) {
+			Entry<V> e = t.get(i);
+			if(e == null)
+				return null;
+			if(e != REMOVED && e.key == key) {
+				t.set(i, IntMap.<V>removed());
+				size--;
+				return e.value;
+			}
+		}
+	}
+
+	// readers keep using the old table until the new one is published
+	private void rebuild() {
+		AtomicReferenceArray<Entry<V>> t = table;
+		int n = t.length();
+		if(size * 4 > n)
+			n <<= 1;
+
+		AtomicReferenceArray<Entry<V>> nt = new AtomicReferenceArray<Entry<V>>(n);
+		int mask = n - 1;
+		for(int j = 0; j < t.length(); j++) {
+			Entry<V> e = t.get(j);
+			if(e == null || e == REMOVED)
+				continue;
+			int i = hash(e.key, mask);
+			while(nt.get(i) != null)
+				i = (i + 1) & mask;
+			nt.set(i, e);
+		}
+		used = size;
+		table = nt;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized void clear() {
+		table = new AtomicReferenceArray<Entry<V>>(16);
+		size = 0;
+		used = 0;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.tzi.context.common.Context;
+import org.tzi.context.common.ContextListener;
+
+/**
+ * Finds the listeners for an event by context, source, property and tags.
+ * Listeners can use {@link Context#ALL_CONTEXTS}, {@link Context#ALL_SOURCES}
+ * and {@link Context#ALL_PROPERTIES}; no tags match every event.
+ * The index is rebuilt on every change and replaced as a whole, so
+ * lookups do not lock.
+ */
+public class ListenerRouter {
+
+	private static class Route {
+		private final ContextListener listener;
+		private final String context;
+		private final String source;
+		private final String property;
+		private final Set<String> tags;
+
+		private Route(ContextListener listener, String context, String source, String property, Set<String> tags) {
+			this.listener = listener;
+			this.context = context;
+			this.source = source;
+			this.property = property;
+			this.tags = tags;
+		}
+
+		private boolean matchesTags(Set<String> eventTags) {
+			if(tags.isEmpty() || eventTags == null)
+				return true;
+			for(String tag : tags) {
+				if(eventTags.contains(tag))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static final List<ContextListener> none = Collections.emptyList();
+
+	// guarded by this
+	private List<Route> routes = new ArrayList<Route>();
+
+	// context -> source -> property -> routes
+	private volatile Map<String, Map<String, Map<String, List<Route>>>> index = new HashMap<String, Map<String, Map<String, List<Route>>>>();
+
+	public synchronized void add(ContextListener cl, String context, String source, String property, Collection<String> tags) {
+		routes.add(new Route(cl, context, source, property, tags == null ? new TreeSet<String>() : new TreeSet<String>(tags)));
+		rebuild();
+	}
+
+	/**
+	 * Removes all routes of a listener.
+	 */
+	public synchronized boolean remove(ContextListener cl) {
+		boolean removed = false;
+		for(Iterator<Route> i = routes.iterator(); i.hasNext(); ) {
+			if(i.next().listener == cl) {
+				i.remove();
+				removed = true;
+			}
+		}
+		if(removed)
+			rebuild();
+		return removed;
+	}
+
+	public synchronized boolean isEmpty() {
+		return routes.isEmpty();
+	}
+
+	private void rebuild() {
+		Map<String, Map<String, Map<String, List<Route>>>> ni = new HashMap<String, Map<String, Map<String, List<Route>>>>();
+		for(Route r : routes) {
+			Map<String, Map<String, List<Route>>> srcMap = ni.get(r.context);
+			if(srcMap == null)
+				ni.put(r.context, srcMap = new HashMap<String, Map<String, List<Route>>>());
+			Map<String, List<Route>> prpMap = srcMap.get(r.source);
+			if(prpMap == null)
+				srcMap.put(r.source, prpMap = new HashMap<String, List<Route>>());
+			List<Route> l = prpMap.get(r.property);
+			if(l == null)
+				prpMap.put(r.property, l = new ArrayList<Route>(1));
+			l.add(r);
+		}
+		index = ni;
+	}
+
+	/**
+	 * @param source null matches all sources
+	 * @param property null matches all properties
+	 * @param tags null ignores the listeners' tags
+	 * @return each matching listener once
+	 */
+	public List<ContextListener> match(String context, String source, String property, Set<String> tags) {
+		Map<String, Map<String, Map<String, List<Route>>>> idx = index;
+		List<ContextListener> result = none;
+		result = matchContext(idx.get(context), source, property, tags, result);
+		if(!Context.ALL_CONTEXTS.equals(context))
+			result = matchContext(idx.get(Context.ALL_CONTEXTS), source, property, tags, result);
+		return result;
+	}
+
+	private static List<ContextListener> matchContext(Map<String, Map<String, List<Route>>> srcMap, String source, String property, Set<String> tags, List<ContextListener> result) {
+		if(srcMap == null)
+			return result;
+		if(source == null) {
+			for(Map<String, List<Route>> prpMap : srcMap.values())
+				result = matchSource(prpMap, property, tags, result);
+			return result;
+		}
+		result = matchSource(srcMap.get(source), property, tags, result);
+		if(!Context.ALL_SOURCES.equals(source))
+			result = matchSource(srcMap.get(Context.ALL_SOURCES), property, tags, result);
+		return result;
+	}
+
+	private static List<ContextListener> matchSource(Map<String, List<Route>> prpMap, String property, Set<String> tags, List<ContextListener> result) {
+		if(prpMap == null)
+			return result;
+		if(property == null) {
+			for(List<Route> l : prpMap.values())
+				result = matchRoutes(l, tags, result);
+			return result;
+		}
+		result = matchRoutes(prpMap.get(property), tags, result);
+		if(!Context.ALL_PROPERTIES.equals(property))
+			result = matchRoutes(prpMap.get(Context.ALL_PROPERTIES), tags, result);
+		return result;
+	}
+
+	private static List<ContextListener> matchRoutes(List<Route> l, Set<String> tags, List<ContextListener> result) {
+		if(l == null)
+			return result;
+		for(Route r : l) {
+			if(!r.matchesTags(tags) || result.contains(r.listener))
+				continue;
+			if(result == none)
+				result = new ArrayList<ContextListener>(2);
+			result.add(r.listener);
+		}
+		return result;
+	}
+}
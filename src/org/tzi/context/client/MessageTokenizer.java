@@ -0,0 +1,203 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+/**
+ * Cursor over a whitespace separated message.
+ * Tokens are handed out as index ranges into the message, so a String is
+ * only created when a caller explicitly asks for one.
+ * Instances are not thread safe but can be reused via {@link #reset(CharSequence)}.
+ */
+public class MessageTokenizer {
+
+	private CharSequence msg = null;
+	private int length = 0;
+	private int pos = 0;
+
+	private int start = 0;
+	private int end = 0;
+
+	public MessageTokenizer() {
+	}
+
+	public MessageTokenizer(CharSequence msg) {
+		reset(msg);
+	}
+
+	public MessageTokenizer reset(CharSequence msg) {
+		this.msg = msg;
+		this.length = msg == null ? 0 : msg.length();
+		this.pos = 0;
+		this.start = 0;
+		this.end = 0;
+		return this;
+	}
+
+	public CharSequence getMessage() {
+		return msg;
+	}
+
+	/**
+	 * Advances to the next token.
+	 * @return false if there are no more tokens
+	 */
+	public boolean next() {
+		while(pos < length && Character.isWhitespace(msg.charAt(pos)))
+			pos++;
+
+		if(pos >= length) {
+			start = end = length;
+			return false;
+		}
+
+		start = pos;
+		while(pos < length && !Character.isWhitespace(msg.charAt(pos)))
+			pos++;
+		end = pos;
+
+		return true;
+	}
+
+	public boolean skip(int n) {
+		for(int i=0; i<n; i++) {
+			if(!next())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the tokens after the current one without moving the cursor.
+	 */
+	public int countRemaining() {
+		int count = 0;
+		int p = pos;
+		while(p < length) {
+			while(p < length && Character.isWhitespace(msg.charAt(p)))
+				p++;
+			if(p >= length)
+				break;
+			count++;
+			while(p < length && !Character.isWhitespace(msg.charAt(p)))
+				p++;
+		}
+		return count;
+	}
+
+	public int tokenStart() {
+		return start;
+	}
+
+	public int tokenEnd() {
+		return end;
+	}
+
+	public int tokenLength() {
+		return end - start;
+	}
+
+	public String token() {
+		return token(0);
+	}
+
+	public String token(int skipChars) {
+		int s = start + skipChars;
+		if(s > end)
+			s = end;
+		return msg.subSequence(s, end).toString();
+	}
+
+	public boolean tokenEquals(String s) {
+		return tokenMatches(s, false, true);
+	}
+
+	public boolean tokenEqualsIgnoreCase(String s) {
+		return tokenMatches(s, true, true);
+	}
+
+	public boolean tokenStartsWith(String s) {
+		return tokenMatches(s, false, false);
+	}
+
+	private boolean tokenMatches(String s, boolean ignoreCase, boolean full) {
+		int l = s.length();
+		if(full ? l != (end - start) : l > (end - start))
+			return false;
+
+		for(int i=0; i<l; i++) {
+			char a = msg.charAt(start + i);
+			char b = s.charAt(i);
+			if(a == b)
+				continue;
+			if(!ignoreCase)
+				return false;
+			if(Character.toUpperCase(a) != Character.toUpperCase(b) && Character.toLowerCase(a) != Character.toLowerCase(b))
+				return false;
+		}
+
+		return true;
+	}
+
+	public int tokenInt() throws NumberFormatException {
+		return parseInt(msg, start, end);
+	}
+
+	public int tokenIntOr(int def) {
+		try {
+			return parseInt(msg, start, end);
+		} catch(NumberFormatException nfe) {
+			return def;
+		}
+	}
+
+	/**
+	 * Parses a decimal int from a region of a CharSequence without creating a substring.
+	 */
+	public static int parseInt(CharSequence cs, int from, int to) throws NumberFormatException {
+		if(cs == null || from >= to)
+			throw new NumberFormatException("empty");
+
+		boolean negative = false;
+		int i = from;
+		char c = cs.charAt(i);
+		if(c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+			if(i >= to)
+				throw new NumberFormatException("sign only");
+		}
+
+		// accumulate negatively to cover Integer.MIN_VALUE
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int multmin = limit / 10;
+		int result = 0;
+		for(; i<to; i++) {
+			int digit = cs.charAt(i) - '0';
+			if(digit < 0 || digit > 9 || result < multmin)
+				throw new NumberFormatException(cs.subSequence(from, to).toString());
+			result *= 10;
+			if(result < limit + digit)
+				throw new NumberFormatException(cs.subSequence(from, to).toString());
+			result -= digit;
+		}
+
+		return negative ? result : -result;
+	}
+
+	public static int parseInt(CharSequence cs) throws NumberFormatException {
+		return parseInt(cs, 0, cs == null ? 0 : cs.length());
+	}
+}
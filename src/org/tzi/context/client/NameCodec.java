@@ -0,0 +1,78 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tzi.context.common.Util;
+
+/**
+ * Caches URL-encoded forms of context, source, property and tag names for
+ * outgoing commands. Names come from a small vocabulary, so most lookups hit.
+ * Values should not go through here. Incoming names are decoded by the
+ * common library, not here.
+ * At most maxSize names are held; a full cache is emptied and filled again.
+ */
+public class NameCodec {
+
+	private final int maxSize;
+
+	private final ConcurrentHashMap<String, String> encoded = new ConcurrentHashMap<String, String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public NameCodec(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public String encode(String name) {
+		if(name == null)
+			return null;
+
+		String s = encoded.get(name);
+		if(s != null) {
+			hits.incrementAndGet();
+			return s;
+		}
+
+		misses.incrementAndGet();
+		s = Util.urlencode(name);
+		if(encoded.size() >= maxSize)
+			encoded.clear();
+		encoded.put(name, s);
+		return s;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double)h / total;
+	}
+
+	public void clear() {
+		encoded.clear();
+	}
+}
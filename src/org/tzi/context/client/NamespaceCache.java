@@ -0,0 +1,189 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Last known context, source and property listings (id -> name) as sent by the server.
+ * Listings are patched when elements are added, removed or change their id.
+ * If a change can not be applied (e.g. the id of a new element is unknown)
+ * the affected listing is dropped and has to be fetched again.
+ */
+public class NamespaceCache {
+
+	private Map<Integer, String> contexts = null;
+	private Map<String, Map<Integer, String>> sources = new TreeMap<String, Map<Integer,String>>();
+	private Map<String, Map<String, Map<Integer, String>>> properties = new TreeMap<String, Map<String,Map<Integer,String>>>();
+
+	private static Map<Integer, String> copy(Map<Integer, String> m) {
+		if(m==null)
+			return null;
+
+		return new TreeMap<Integer, String>(m);
+	}
+
+	// the server marks some names with a trailing '*'
+	private static boolean sameName(String listed, String name) {
+		return listed.equals(name) || (listed.endsWith("*") && listed.length() == name.length()+1 && listed.startsWith(name));
+	}
+
+	private static boolean removeName(Map<Integer, String> m, String name) {
+		boolean removed = false;
+		for(Iterator<String> i = m.values().iterator(); i.hasNext(); ) {
+			if(sameName(i.next(), name)) {
+				i.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	private static void changeId(Map<Integer, String> m, int oldId, int newId) {
+		if(m==null)
+			return;
+		String name = m.remove(oldId);
+		if(name!=null)
+			m.put(newId, name);
+	}
+
+	private static void addName(Map<Integer, String> m, int id, String name) {
+		if(m==null)
+			return;
+		if(!m.containsKey(id)) {
+			removeName(m, name);
+			m.put(id, name);
+		}
+	}
+
+	private Map<Integer, String> propertyMap(String context, String source) {
+		Map<String, Map<Integer, String>> pm = properties.get(context);
+		return pm == null ? null : pm.get(source);
+	}
+
+	public synchronized Map<Integer, String> getContextList() {
+		return copy(contexts);
+	}
+
+	public synchronized Map<Integer, String> getSourceList(String context) {
+		return copy(sources.get(context));
+	}
+
+	public synchronized Map<Integer, String> getPropertyList(String context, String source) {
+		return copy(propertyMap(context, source));
+	}
+
+	public synchronized void putContextList(Map<Integer, String> m) {
+		contexts = copy(m);
+	}
+
+	public synchronized void putSourceList(String context, Map<Integer, String> m) {
+		sources.put(context, copy(m));
+	}
+
+	public synchronized void putPropertyList(String context, String source, Map<Integer, String> m) {
+		Map<String, Map<Integer, String>> pm = properties.get(context);
+		if(pm==null) {
+			properties.put(context, pm = new TreeMap<String, Map<Integer,String>>());
+		}
+		pm.put(source, copy(m));
+	}
+
+	public synchronized void contextKnown(String context, int id) {
+		addName(contexts, id, context);
+	}
+
+	public synchronized void sourceKnown(String context, String source, int id) {
+		addName(sources.get(context), id, source);
+	}
+
+	public synchronized void propertyKnown(String context, String source, String property, int id) {
+		addName(propertyMap(context, source), id, property);
+	}
+
+	public synchronized void sourceAdded(String context, String source, Integer id) {
+		Map<Integer, String> sm = sources.get(context);
+		if(sm==null)
+			return;
+		if(id!=null) {
+			addName(sm, id, source);
+		} else {
+			boolean listed = false;
+			for(String s : sm.values()) {
+				if(sameName(s, source)) {
+					listed = true;
+					break;
+				}
+			}
+			if(!listed)
+				sources.remove(context);
+		}
+	}
+
+	public synchronized void propertyAdded(String context, String source, String property, Integer id) {
+		Map<Integer, String> pm = propertyMap(context, source);
+		if(pm==null)
+			return;
+		if(id!=null) {
+			addName(pm, id, property);
+		} else {
+			boolean listed = false;
+			for(String p : pm.values()) {
+				if(sameName(p, property)) {
+					listed = true;
+					break;
+				}
+			}
+			if(!listed)
+				properties.get(context).remove(source);
+		}
+	}
+
+	public synchronized void sourceRemoved(String context, String source) {
+		Map<Integer, String> sm = sources.get(context);
+		if(sm!=null)
+			removeName(sm, source);
+		Map<String, Map<Integer, String>> pm = properties.get(context);
+		if(pm!=null)
+			pm.remove(source);
+	}
+
+	public synchronized void propertyRemoved(String context, String source, String property) {
+		Map<Integer, String> pm = propertyMap(context, source);
+		if(pm!=null)
+			removeName(pm, property);
+	}
+
+	public synchronized void contextIdChanged(int oldId, int newId) {
+		changeId(contexts, oldId, newId);
+	}
+
+	public synchronized void sourceIdChanged(String context, int oldId, int newId) {
+		changeId(sources.get(context), oldId, newId);
+	}
+
+	public synchronized void propertyIdChanged(String context, String source, int oldId, int newId) {
+		changeId(propertyMap(context, source), oldId, newId);
+	}
+
+	public synchronized void clear() {
+		contexts = null;
+		sources.clear();
+		properties.clear();
+	}
+}
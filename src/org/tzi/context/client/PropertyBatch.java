@@ -0,0 +1,90 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.List;
+
+import org.tzi.context.client.ContextManager.PropertyValue;
+
+/**
+ * Tracks the outcome of a {@link ContextManager#setProperties(java.util.Collection)} call.
+ */
+public class PropertyBatch {
+
+	public static enum State { Pending, Done, Failed };
+
+	private final List<PropertyValue> items;
+	private final State [] states;
+	private int pending;
+	private int failed = 0;
+
+	PropertyBatch(List<PropertyValue> items) {
+		this.items = items;
+		this.states = new State [items.size()];
+		for(int i=0; i<states.length; i++)
+			states[i] = State.Pending;
+		this.pending = states.length;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	public PropertyValue getItem(int index) {
+		return items.get(index);
+	}
+
+	public synchronized State getState(int index) {
+		return states[index];
+	}
+
+	public synchronized int getPendingCount() {
+		return pending;
+	}
+
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+
+	public synchronized boolean isComplete() {
+		return pending == 0;
+	}
+
+	/**
+	 * @return true if all items are done or failed before the timeout (in ms) ran out
+	 */
+	public synchronized boolean waitForCompletion(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long now;
+		while(pending > 0 && (now = System.currentTimeMillis()) < end) {
+			wait(end - now);
+		}
+		return pending == 0;
+	}
+
+	synchronized void itemFinished(int index, boolean success) {
+		if(states[index] != State.Pending)
+			return;
+
+		states[index] = success ? State.Done : State.Failed;
+		if(!success)
+			failed++;
+		pending--;
+
+		if(pending == 0)
+			notifyAll();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.List;
+
+import org.tzi.context.common.Protocol;
+
+/**
+ * Pre-resolved property for repeated sets, see {@link ContextManager#resolve(String, String, String)}.
+ * The id and the encoded command are kept until the manager's ids change,
+ * then the handle looks them up again. While no id is known sets take the
+ * regular path by name.
+ */
+public class PropertyHandle {
+
+	private final ContextManager manager;
+	private final String context;
+	private final String source;
+	private final String property;
+
+	private int generation = -1;
+	private Integer id = null;
+	private String idCommand = null;
+	private final StringBuilder sb = new StringBuilder();
+
+	PropertyHandle(ContextManager manager, String context, String source, String property) {
+		this.manager = manager;
+		this.context = context;
+		this.source = source;
+		this.property = property;
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	/**
+	 * @return the resolved id or null if it is not known (yet)
+	 */
+	public synchronized Integer getId() {
+		update();
+		return id;
+	}
+
+	private void update() {
+		int gen = manager.getIdGeneration();
+		if(id == null || gen != generation) {
+			generation = gen;
+			id = manager.lookupPropertyId(context, source, property);
+			idCommand = id == null ? null : " " + Protocol.SETPRP + " " + id.intValue() + " = ";
+		}
+	}
+
+	public void set(String value) {
+		set(value, -1, null, false);
+	}
+
+	public void set(String value, long timestamp, List<String> tags) {
+		set(value, timestamp, tags, false);
+	}
+
+	public synchronized void set(String value, long timestamp, List<String> tags, boolean isPersistent) {
+		update();
+		if(id == null) {
+			manager.setProperty(context, source, property, value, tags, timestamp, isPersistent);
+		} else {
+			manager.setProperty(this, sb, idCommand, value, tags, timestamp, isPersistent);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tzi.context.common.Context;
+import org.tzi.context.common.ContextElement;
+
+/**
+ * Latest known value per context/source/property.
+ * Values delivered by a subscription stay valid as long as the subscription
+ * is active, all other values expire after the configured time to live.
+ */
+public class PropertyValueCache {
+
+	private static class Entry {
+		private final ContextElement ce;
+		private final long updated;
+		private volatile boolean subscribed;
+
+		private Entry(ContextElement ce, long updated, boolean subscribed) {
+			this.ce = ce;
+			this.updated = updated;
+			this.subscribed = subscribed;
+		}
+	}
+
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>> entries = new ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>>();
+
+	private volatile long ttl;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	public PropertyValueCache(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+	public void setTTL(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public ContextElement get(String context, String source, String property) {
+		Entry e = null;
+		ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> srcMap = entries.get(context);
+		if(srcMap!=null) {
+			ConcurrentHashMap<String, Entry> prpMap = srcMap.get(source);
+			if(prpMap!=null) {
+				e = prpMap.get(property);
+			}
+		}
+
+		if(e!=null && (e.subscribed || (System.currentTimeMillis() - e.updated) <= ttl)) {
+			hits.incrementAndGet();
+			return e.ce;
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void update(String context, ContextElement ce, boolean bySubscription) {
+		ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> srcMap = entries.get(context);
+		if(srcMap==null) {
+			ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> newMap = new ConcurrentHashMap<String, ConcurrentHashMap<String,Entry>>();
+			srcMap = entries.putIfAbsent(context, newMap);
+			if(srcMap==null)
+				srcMap = newMap;
+		}
+		ConcurrentHashMap<String, Entry> prpMap = srcMap.get(ce.getSourceIdentifier());
+		if(prpMap==null) {
+			ConcurrentHashMap<String, Entry> newMap = new ConcurrentHashMap<String, Entry>();
+			prpMap = srcMap.putIfAbsent(ce.getSourceIdentifier(), newMap);
+			if(prpMap==null)
+				prpMap = newMap;
+		}
+		Entry old = prpMap.get(ce.getPropertyIdentifier());
+		prpMap.put(ce.getPropertyIdentifier(), new Entry(ce, System.currentTimeMillis(), bySubscription || (old!=null && old.subscribed)));
+	}
+
+	public void remove(String context, String source, String property) {
+		ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> srcMap = entries.get(context);
+		if(srcMap!=null) {
+			ConcurrentHashMap<String, Entry> prpMap = srcMap.get(source);
+			if(prpMap!=null) {
+				prpMap.remove(property);
+			}
+		}
+	}
+
+	public void removeSource(String context, String source) {
+		ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> srcMap = entries.get(context);
+		if(srcMap!=null) {
+			srcMap.remove(source);
+		}
+	}
+
+	/**
+	 * Called when subscriptions are lost (e.g. on reconnect). Values stay
+	 * usable until their time to live runs out.
+	 */
+	public void dropSubscriptionCoverage() {
+		for(ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> srcMap : entries.values()) {
+			for(ConcurrentHashMap<String, Entry> prpMap : srcMap.values()) {
+				for(Entry e : prpMap.values()) {
+					e.subscribed = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called when a subscription is released. The ALL_* names match every
+	 * context, source or property.
+	 */
+	public void dropSubscriptionCoverage(String context, String source, String property) {
+		for(Map.Entry<String, ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>> ce : entries.entrySet()) {
+			if(!Context.ALL_CONTEXTS.equals(context) && !context.equals(ce.getKey()))
+				continue;
+			for(Map.Entry<String, ConcurrentHashMap<String, Entry>> se : ce.getValue().entrySet()) {
+				if(!Context.ALL_SOURCES.equals(source) && !source.equals(se.getKey()))
+					continue;
+				for(Map.Entry<String, Entry> pe : se.getValue().entrySet()) {
+					if(Context.ALL_PROPERTIES.equals(property) || property.equals(pe.getKey()))
+						pe.getValue().subscribed = false;
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+}
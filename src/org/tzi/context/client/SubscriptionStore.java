@@ -0,0 +1,187 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.tzi.context.common.Util;
+
+/**
+ * Text file with one subscribed property per line:
+ * key, context, source, property, number of tags, tags.
+ * Reference counts are not kept; the application subscribes again after a
+ * restart. Files of version 1 carry a count after the key, it is skipped.
+ * Names are URL-encoded, the null key is written as '-', String keys get a
+ * leading '='. The file is replaced as a whole via a temporary file.
+ */
+public class SubscriptionStore {
+
+	private static final String HEADER = "# context subscriptions 2";
+	private static final String HEADER_V1 = "# context subscriptions 1";
+
+	public static class Entry {
+		public final String key;
+		public final String context;
+		public final String source;
+		public final String property;
+		public final Set<String> tags;
+
+		public Entry(String key, String context, String source, String property, Set<String> tags) {
+			this.key = key;
+			this.context = context;
+			this.source = source;
+			this.property = property;
+			this.tags = tags == null ? new TreeSet<String>() : new TreeSet<String>(tags);
+		}
+	}
+
+	private static File tempFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * @return true if there is something to load; a crash while replacing the
+	 * file may have left only the finished temporary file
+	 */
+	public static boolean exists(File file) {
+		return file.exists() || tempFile(file).exists();
+	}
+
+	/**
+	 * Bad lines (e.g. cut off by a crash) are skipped.
+	 */
+	public static List<Entry> load(File file) throws IOException {
+		if(!file.exists() && tempFile(file).exists())
+			file = tempFile(file);
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int lineNo = 0;
+			// words before the context
+			int head = 1;
+			while((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if(line.equals(HEADER_V1))
+					head = 2;
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				Entry e = parseLine(line.split(" "), head);
+				if(e == null) {
+					System.err.println("Skipping bad subscription in " + file + " line " + lineNo);
+				} else {
+					entries.add(e);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return entries;
+	}
+
+	// null if the line is not complete
+	private static Entry parseLine(String [] words, int head) {
+		if(words.length < head + 4)
+			return null;
+		String key;
+		if(words[0].equals("-")) {
+			key = null;
+		} else if(words[0].startsWith("=")) {
+			key = words[0].substring(1);
+		} else {
+			return null;
+		}
+		if(head > 1 && !isNumber(words[1]))
+			return null;
+		if(!isNumber(words[head + 3]))
+			return null;
+		int ntags;
+		try {
+			ntags = Integer.parseInt(words[head + 3]);
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+		if(words.length != head + 4 + ntags)
+			return null;
+		try {
+			Set<String> tags = new TreeSet<String>();
+			for(int i=0; i<ntags; i++)
+				tags.add(Util.urldecode(words[head + 4 + i]));
+			return new Entry(key == null ? null : Util.urldecode(key), Util.urldecode(words[head]), Util.urldecode(words[head + 1]), Util.urldecode(words[head + 2]), tags);
+		} catch(IllegalArgumentException iae) {
+			// broken escape
+			return null;
+		}
+	}
+
+	private static boolean isNumber(String s) {
+		if(s.length() == 0)
+			return false;
+		for(int i=0; i<s.length(); i++) {
+			if(!Character.isDigit(s.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	public static synchronized void save(File file, List<Entry> entries) throws IOException {
+		File tmp = tempFile(file);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+		try {
+			bw.write(HEADER);
+			bw.newLine();
+			StringBuilder sb = new StringBuilder();
+			for(Entry e : entries) {
+				sb.setLength(0);
+				sb.append(e.key == null ? "-" : "=" + Util.urlencode(e.key));
+				sb.append(' ').append(Util.urlencode(e.context));
+				sb.append(' ').append(Util.urlencode(e.source));
+				sb.append(' ').append(Util.urlencode(e.property));
+				sb.append(' ').append(e.tags.size());
+				for(String tag : e.tags)
+					sb.append(' ').append(Util.urlencode(tag));
+				bw.write(sb.toString());
+				bw.newLine();
+			}
+			// on disk before it replaces the old file
+			bw.flush();
+			fos.getFD().sync();
+		} finally {
+			bw.close();
+		}
+
+		if(!tmp.renameTo(file)) {
+			// renaming onto an existing file fails on some platforms
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Event counters for one sub-id. Everything is striped by thread so
+ * recording does not contend; stripes are created on first use.
+ * Rates come from per-second buckets and are approximate: an event may be
+ * lost when two threads of a stripe start a new second at the same time.
+ */
+public class TrafficStats {
+
+	public static class Snapshot {
+		public final long count;
+		public final long bytes;
+		/** events per second over the last 1, 10 and 60 seconds */
+		public final double rate1;
+		public final double rate10;
+		public final double rate60;
+		/** time of the last event, 0 if none */
+		public final long lastEvent;
+
+		private Snapshot(long count, long bytes, double rate1, double rate10, double rate60, long lastEvent) {
+			this.count = count;
+			this.bytes = bytes;
+			this.rate1 = rate1;
+			this.rate10 = rate10;
+			this.rate60 = rate60;
+			this.lastEvent = lastEvent;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d events, %d bytes, %.1f/%.1f/%.1f per s", count, bytes, rate1, rate10, rate60);
+		}
+	}
+
+	/**
+	 * Totals for one subscription key, summed over its sub-ids when a
+	 * snapshot is taken. Recording never touches the group.
+	 */
+	public static class Group {
+		private final List<TrafficStats> members = new ArrayList<TrafficStats>();
+		// no longer active, counted until their rates have expired
+		private final List<TrafficStats> retired = new ArrayList<TrafficStats>();
+		private long retiredCount = 0;
+		private long retiredBytes = 0;
+		private long retiredLast = 0;
+
+		public synchronized void add(TrafficStats ts) {
+			members.add(ts);
+		}
+
+		/**
+		 * Keeps the totals of a member whose sub-id is gone.
+		 */
+		public synchronized void retire(TrafficStats ts) {
+			if(members.remove(ts))
+				retired.add(ts);
+		}
+
+		public synchronized void retireAll() {
+			retired.addAll(members);
+			members.clear();
+		}
+
+		public synchronized Snapshot snapshot() {
+			long now = System.currentTimeMillis();
+			long sec = now / 1000;
+			Totals t = new Totals();
+			for(TrafficStats ts : members)
+				ts.addTo(t, sec);
+			for(Iterator<TrafficStats> i = retired.iterator(); i.hasNext(); ) {
+				TrafficStats ts = i.next();
+				Totals r = new Totals();
+				ts.addTo(r, sec);
+				if(r.lastEvent < now - SECONDS * 1000L) {
+					retiredCount += r.count;
+					retiredBytes += r.bytes;
+					retiredLast = Math.max(retiredLast, r.lastEvent);
+					i.remove();
+				} else {
+					t.add(r);
+				}
+			}
+			t.count += retiredCount;
+			t.bytes += retiredBytes;
+			t.lastEvent = Math.max(t.lastEvent, retiredLast);
+			return t.snapshot();
+		}
+	}
+
+	private static class Totals {
+		private long count = 0;
+		private long bytes = 0;
+		private long lastEvent = 0;
+		private long sum1 = 0;
+		private long sum10 = 0;
+		private long sum60 = 0;
+
+		private void add(Totals t) {
+			count += t.count;
+			bytes += t.bytes;
+			lastEvent = Math.max(lastEvent, t.lastEvent);
+			sum1 += t.sum1;
+			sum10 += t.sum10;
+			sum60 += t.sum60;
+		}
+
+		private Snapshot snapshot() {
+			return new Snapshot(count, bytes, sum1, sum10 / 10.0, sum60 / 60.0, lastEvent);
+		}
+	}
+
+	private static final int STRIPES = 8;
+	private static final int SECONDS = 64;
+	// stripe layout: count, bytes, last event, then (events, second) per bucket
+	private static final int COUNT = 0;
+	private static final int BYTES = 1;
+	private static final int LAST = 2;
+	private static final int BUCKETS = 3;
+	private static final int SIZE = BUCKETS + 2 * SECONDS;
+
+	private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+
+	public void record(int bytes) {
+		long now = System.currentTimeMillis();
+		int s = (int)Thread.currentThread().getId() & (STRIPES - 1);
+		AtomicLongArray a = stripes.get(s);
+		if(a == null) {
+			stripes.compareAndSet(s, null, new AtomicLongArray(SIZE));
+			a = stripes.get(s);
+		}
+		a.incrementAndGet(COUNT);
+		a.addAndGet(BYTES, bytes);
+
+		long sec = now / 1000;
+		int i = BUCKETS + 2 * (int)(sec & (SECONDS - 1));
+		long stamp = a.get(i + 1);
+		if(stamp != sec && a.compareAndSet(i + 1, stamp, sec))
+			a.set(i, 0);
+		a.incrementAndGet(i);
+
+		if(a.get(LAST) != now)
+			a.set(LAST, now);
+	}
+
+	// rates over the last complete seconds
+	private void addTo(Totals t, long sec) {
+		for(int s=0; s<STRIPES; s++) {
+			AtomicLongArray a = stripes.get(s);
+			if(a == null)
+				continue;
+			t.count += a.get(COUNT);
+			t.bytes += a.get(BYTES);
+			t.lastEvent = Math.max(t.lastEvent, a.get(LAST));
+			for(int k=1; k<=60; k++) {
+				int i = BUCKETS + 2 * (int)((sec - k) & (SECONDS - 1));
+				if(a.get(i + 1) != sec - k)
+					continue;
+				long n = a.get(i);
+				if(k <= 1)
+					t.sum1 += n;
+				if(k <= 10)
+					t.sum10 += n;
+				t.sum60 += n;
+			}
+		}
+	}
+
+	public Snapshot snapshot() {
+		Totals t = new Totals();
+		addTo(t, System.currentTimeMillis() / 1000);
+		return t.snapshot();
+	}
+}